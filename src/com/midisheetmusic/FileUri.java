@@ -16,6 +16,8 @@ import android.content.*;
 import android.content.res.*;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.*;
 
 import android.net.*;
@@ -82,56 +84,111 @@ public class FileUri implements Comparator<FileUri> {
 	 * Return the file contents as a byte array. If any IO error occurs, return null.
 	 */
 	public byte[] getData(Activity activity) {
-		try {
-			byte[] data;
-			int totallen, len, offset;
+		ByteBuffer buffer = readBuffer(activity);
+		if (buffer == null) {
+			return null;
+		}
+		if (buffer.hasArray() && buffer.arrayOffset() == 0 && buffer.array().length == buffer.remaining()) {
+			return buffer.array();
+		}
+		byte[] data = new byte[buffer.remaining()];
+		buffer.get(data);
+		return data;
+	}
+
+	/** Files at least this long are memory mapped instead of read */
+	private static final int MAP_THRESHOLD = 64 * 1024;
+
+	/**
+	 * Return the file contents as a read-only ByteBuffer, reading the file only once. If the length of the file is known,
+	 * large files are memory mapped and small ones read into an array of exactly their size. Otherwise the stream is read
+	 * into a growing buffer. If any IO error occurs, return null.
+	 */
+	public ByteBuffer getBuffer(Context context) {
+		ByteBuffer buffer = readBuffer(context);
+		return buffer == null ? null : buffer.asReadOnlyBuffer();
+	}
 
-			// First, determine the file length
-			data = new byte[4096];
-			InputStream file;
+	/**
+	 * Read the file contents as described by getBuffer(). Small files are returned in a writable buffer backing an array
+	 * of exactly their size, so getData() can return the array without copying it.
+	 */
+	private ByteBuffer readBuffer(Context context) {
+		try {
 			String uriString = uri.toString();
 			if (uriString.startsWith("file:///android_asset/")) {
-				AssetManager asset = activity.getResources().getAssets();
+				AssetManager asset = context.getResources().getAssets();
 				String filepath = uriString.replace("file:///android_asset/", "");
-				file = asset.open(filepath);
+				try {
+					return readDescriptor(asset.openFd(filepath));
+				} catch (FileNotFoundException e) {
+					// the asset is compressed, it has no file descriptor
+					return readStream(asset.open(filepath));
+				}
 			} else if (uriString.startsWith("content://")) {
-				ContentResolver resolver = activity.getContentResolver();
-				file = resolver.openInputStream(uri);
+				ContentResolver resolver = context.getContentResolver();
+				try {
+					return readDescriptor(resolver.openAssetFileDescriptor(uri, "r"));
+				} catch (IOException e) {
+					// the provider's descriptor can't be read by position, e.g. a pipe
+					return readStream(resolver.openInputStream(uri));
+				}
 			} else {
-				file = new FileInputStream(uri.getPath());
-			}
-			totallen = 0;
-			len = file.read(data, 0, 4096);
-			while (len > 0) {
-				totallen += len;
-				len = file.read(data, 0, 4096);
+				FileInputStream file = new FileInputStream(uri.getPath());
+				try {
+					return readChannel(file.getChannel(), 0, file.getChannel().size());
+				} finally {
+					file.close();
+				}
 			}
-			file.close();
+		} catch (Exception e) {
+			return null;
+		}
+	}
 
-			// Now read in the data
-			offset = 0;
-			data = new byte[totallen];
+	/** Read the part of a file described by the descriptor */
+	private static ByteBuffer readDescriptor(AssetFileDescriptor descriptor) throws IOException {
+		try {
+			FileInputStream file = descriptor.createInputStream();
+			if (descriptor.getLength() == AssetFileDescriptor.UNKNOWN_LENGTH) {
+				return readStream(file);
+			}
+			return readChannel(file.getChannel(), descriptor.getStartOffset(), descriptor.getLength());
+		} finally {
+			descriptor.close();
+		}
+	}
 
-			if (uriString.startsWith("file:///android_asset/")) {
-				AssetManager asset = activity.getResources().getAssets();
-				String filepath = uriString.replace("file:///android_asset/", "");
-				file = asset.open(filepath);
-			} else if (uriString.startsWith("content://")) {
-				ContentResolver resolver = activity.getContentResolver();
-				file = resolver.openInputStream(uri);
-			} else {
-				file = new FileInputStream(uri.getPath());
+	/** Read length bytes of the channel from the given position */
+	private static ByteBuffer readChannel(FileChannel channel, long position, long length) throws IOException {
+		if (length >= MAP_THRESHOLD) {
+			return channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+		}
+		ByteBuffer buffer = ByteBuffer.allocate((int) length);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) {
+				throw new MidiFileException("Error reading midi file", buffer.position());
 			}
-			while (offset < totallen) {
-				len = file.read(data, offset, totallen - offset);
-				if (len <= 0) {
-					throw new MidiFileException("Error reading midi file", offset);
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	/** Read the stream to its end, into a growing buffer */
+	private static ByteBuffer readStream(InputStream file) throws IOException {
+		try {
+			byte[] data = new byte[4096];
+			int totallen = 0;
+			int len;
+			while ((len = file.read(data, totallen, data.length - totallen)) > 0) {
+				totallen += len;
+				if (totallen == data.length) {
+					data = Arrays.copyOf(data, data.length * 2);
 				}
-				offset += len;
 			}
-			return data;
-		} catch (Exception e) {
-			return null;
+			return ByteBuffer.wrap(data, 0, totallen).slice();
+		} finally {
+			file.close();
 		}
 	}
 
@@ -13,6 +13,7 @@
 
 package com.midisheetmusic;
 
+import java.nio.ByteBuffer;
 import java.util.*;
 
 /** @class MidiEvent
@@ -40,7 +41,7 @@ public class MidiEvent implements Comparator<MidiEvent> {
     public int    Tempo;         /** The tempo, for Tempo meta events */
     public byte   Metaevent;     /** The metaevent, used if eventflag is MetaEvent */
     public int    Metalength;    /** The metaevent length  */
-    public byte[] Value;         /** The raw byte value, for Sysex and meta events */
+    public ByteBuffer Value;     /** The raw byte value, for Sysex and meta events, a slice of the file data */
 
     public MidiEvent() {
     }
@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) 2007-2011 Madhav Vaidyanathan
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License version 2.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ */
+
+
+package com.midisheetmusic;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+
+
+/** @class MidiEventBuffer
+ * The MidiEventBuffer holds the raw events of one track, packed into
+ * one long per event instead of one MidiEvent object per event:
+ *
+ * bits 63-32 - The start time (measured in pulses) of the event.
+ * bits 31-24 - The status byte, the event flag and channel.
+ * bits 23-16 - The first data byte, or the meta event type.
+ * bits 15-8  - The second data byte.
+ * bit 0      - Set if the event has its own status byte, clear if it
+ *              uses the running status of the previous event.
+ *
+ * The payloads of the Sysex and meta events are kept as slices of the
+ * file data, in the order of their events.
+ *
+ * Where a MidiEvent object is still needed, such as for the lyrics and
+ * the tempo map, getEvent() creates the MidiEvent of a single event.
+ */
+public class MidiEventBuffer {
+    private long[] events;           /** The packed events */
+    private int count;               /** The number of events */
+    private int[] valueEvents;       /** The index of each event with a payload */
+    private ByteBuffer[] values;     /** The payload of each of these events */
+    private int valueCount;          /** The number of payloads */
+
+    public MidiEventBuffer(int capacity) {
+        events = new long[Math.max(capacity, 16)];
+        valueEvents = new int[16];
+        values = new ByteBuffer[16];
+    }
+
+    /** Add a channel event with the given status and data bytes */
+    public void add(int starttime, int status, int data1, int data2, boolean haseventflag) {
+        if (count == events.length) {
+            events = Arrays.copyOf(events, count * 2);
+        }
+        int packed = ((status & 0xFF) << 24) | ((data1 & 0xFF) << 16) |
+                     ((data2 & 0xFF) << 8) | (haseventflag ? 1 : 0);
+        events[count++] = ((long)starttime << 32) | (packed & 0xFFFFFFFFL);
+    }
+
+    /** Add a Sysex or meta event with its payload.  For meta events,
+     *  data1 is the meta event type.
+     */
+    public void addValue(int starttime, int status, int data1, ByteBuffer value, boolean haseventflag) {
+        if (valueCount == values.length) {
+            valueEvents = Arrays.copyOf(valueEvents, valueCount * 2);
+            values = Arrays.copyOf(values, valueCount * 2);
+        }
+        valueEvents[valueCount] = count;
+        values[valueCount++] = value;
+        add(starttime, status, data1, 0, haseventflag);
+    }
+
+    /** Return the number of events */
+    public int size() { return count; }
+
+    /** Return the packed event */
+    public long get(int i) { return events[i]; }
+
+    /** Return the start time (in pulses) of the event */
+    public int getStartTime(int i) { return (int)(events[i] >> 32); }
+
+    /** Return the status byte of the event */
+    public int getStatus(int i) { return (int)(events[i] >> 24) & 0xFF; }
+
+    /** Return the event flag (NoteOn, NoteOff, MetaEvent, etc) of the event */
+    public byte getEventFlag(int i) {
+        int status = getStatus(i);
+        return (byte)(status >= 0xF0 ? status : status & 0xF0);
+    }
+
+    /** Return the channel of the event, 0 for Sysex and meta events */
+    public byte getChannel(int i) {
+        int status = getStatus(i);
+        return (byte)(status >= 0xF0 ? 0 : status & 0x0F);
+    }
+
+    /** Return the first data byte of the event */
+    public byte getData1(int i) { return (byte)(events[i] >> 16); }
+
+    /** Return the second data byte of the event */
+    public byte getData2(int i) { return (byte)(events[i] >> 8); }
+
+    /** Return true if the event has its own status byte */
+    public boolean hasEventflag(int i) { return (events[i] & 1) != 0; }
+
+    /** Return the meta event type, or 0 if this is not a meta event */
+    public byte getMetaevent(int i) {
+        return getStatus(i) == (MidiFile.MetaEvent & 0xFF) ? getData1(i) : 0;
+    }
+
+    /** Return the payload of a Sysex or meta event, or null */
+    public ByteBuffer getValue(int i) {
+        int index = Arrays.binarySearch(valueEvents, 0, valueCount, i);
+        return index >= 0 ? values[index] : null;
+    }
+
+    /** Return the tempo of a Tempo meta event */
+    public int getTempo(int i) {
+        ByteBuffer value = getValue(i);
+        return ((value.get(0) & 0xFF) << 16) | ((value.get(1) & 0xFF) << 8) | (value.get(2) & 0xFF);
+    }
+
+    /** Create the MidiEvent of the given event */
+    public MidiEvent getEvent(int i) {
+        MidiEvent mevent = new MidiEvent();
+        mevent.StartTime = getStartTime(i);
+        mevent.DeltaTime = mevent.StartTime - (i == 0 ? 0 : getStartTime(i-1));
+        mevent.HasEventflag = hasEventflag(i);
+        mevent.EventFlag = getEventFlag(i);
+        mevent.Channel = getChannel(i);
+        byte data1 = getData1(i);
+        byte data2 = getData2(i);
+
+        switch (mevent.EventFlag) {
+            case MidiFile.EventNoteOn:
+            case MidiFile.EventNoteOff:
+                mevent.Notenumber = data1;
+                mevent.Velocity = data2;
+                break;
+            case MidiFile.EventKeyPressure:
+                mevent.Notenumber = data1;
+                mevent.KeyPressure = data2;
+                break;
+            case MidiFile.EventControlChange:
+                mevent.ControlNum = data1;
+                mevent.ControlValue = data2;
+                break;
+            case MidiFile.EventProgramChange:
+                mevent.Instrument = data1;
+                break;
+            case MidiFile.EventChannelPressure:
+                mevent.ChanPressure = data1;
+                break;
+            case MidiFile.EventPitchBend:
+                mevent.PitchBend = (short)(((data1 & 0xFF) << 8) | (data2 & 0xFF));
+                break;
+            case MidiFile.SysexEvent1:
+            case MidiFile.SysexEvent2:
+                mevent.Value = getValue(i);
+                mevent.Metalength = mevent.Value.limit();
+                break;
+            case MidiFile.MetaEvent:
+                mevent.Metaevent = data1;
+                mevent.Value = getValue(i);
+                mevent.Metalength = mevent.Value.limit();
+                if (mevent.Metaevent == MidiFile.MetaEventTimeSignature) {
+                    mevent.Numerator = mevent.Value.get(0);
+                    mevent.Denominator = ((byte)Math.pow(2, mevent.Value.get(1)));
+                }
+                else if (mevent.Metaevent == MidiFile.MetaEventTempo) {
+                    mevent.Tempo = getTempo(i);
+                }
+                break;
+        }
+        return mevent;
+    }
+}
@@ -14,7 +14,9 @@
 package com.midisheetmusic;
 
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
+import java.util.concurrent.*;
 import android.util.*;
 
 /** @class Pair - A pair of ints */
@@ -164,12 +166,14 @@ class PairInt {
  * - The time signature (e.g. 4/4, 3/4, 6/8)
  * - The number of pulses per quarter note.
  * - The tempo (number of microseconds per quarter note).
+ * - The tempo map with every tempo change, used for playback timing.
  *
  * The constructor takes a filename as input, and upon returning,
  * contains the parsed data from the midi file.
  *
  * The methods ReadTrack() and ReadMetaEvent() are helper functions called
- * by the constructor during the parsing.
+ * by the constructor during the parsing.  Files with several tracks have
+ * their tracks parsed concurrently by ReadTracksParallel().
  *
  * After the MidiFile is parsed and created, the user can retrieve the 
  * tracks and notes by using the property Tracks and Tracks.Notes.
@@ -195,13 +199,19 @@ class PairInt {
 public class MidiFile {
     private FileUri fileuri;          /** The file reference */
     private String filename;          /** The Midi file name */
-    private ArrayList<ArrayList<MidiEvent>> allevents; /** The raw MidiEvents, one list per track */
+    private ArrayList<MidiEventBuffer> allevents; /** The raw MidiEvents, one packed buffer per track */
     private ArrayList<MidiTrack> tracks ;  /** The tracks of the midifile that have notes */
     private short trackmode;         /** 0 (single track), 1 (simultaneous tracks) 2 (independent tracks) */
     private TimeSignature timesig;    /** The time signature */
     private int quarternote;          /** The number of pulses per quarter note */
     private int totalpulses;          /** The total length of the song, in pulses */
     private boolean trackPerChannel;  /** True if we've split each channel into a track */
+    private NoteTable notetable;      /** The packed notes of all tracks */
+    private TempoMap tempomap;        /** The tempo changes, for converting pulses to msec */
+
+    /* The chunk ids, the 4 ascii characters as a big endian int */
+    public static final int ChunkHeader = 0x4D546864;  /* "MThd" */
+    public static final int ChunkTrack  = 0x4D54726B;  /* "MTrk" */
 
     /* The list of Midi Events */
     public static final byte EventNoteOff         = (byte)0x80;
@@ -425,9 +435,15 @@ public class MidiFile {
     /** Get the list of tracks */
     public ArrayList<MidiTrack> getTracks() { return tracks; }
 
+    /** Get the packed, time sorted notes of all tracks */
+    public NoteTable getNoteTable() { return notetable; }
+
     /** Get the time signature */
     public TimeSignature getTime() { return timesig; }
 
+    /** Get the tempo map, for converting between pulses and milliseconds */
+    public TempoMap getTempoMap() { return tempomap; }
+
     /** Get the file name */
     public String getFileName() { return filename; }
 
@@ -437,6 +453,13 @@ public class MidiFile {
 
     /** Create a new MidiFile from the byte[] */
     public MidiFile(byte[] rawdata, String filename) {
+        this(ByteBuffer.wrap(rawdata), filename);
+    }
+
+    /** Create a new MidiFile from the remaining bytes of the buffer, which
+     * may be a direct or memory mapped buffer of the file.
+     */
+    public MidiFile(ByteBuffer rawdata, String filename) {
         this.filename = filename;
         parse(rawdata);
     }
@@ -447,17 +470,16 @@ public class MidiFile {
      * - The Time Signature of the song
      * - All the tracks in the song which contain notes. 
      * - The number, starttime, and duration of each note.
+     * - The NoteTable with the notes of all tracks.
      */
-    private void parse(byte[] rawdata) {
-        String id;
+    private void parse(ByteBuffer rawdata) {
         int len;
 
         tracks = new ArrayList<MidiTrack>();
         trackPerChannel = false;
 
         MidiFileReader file = new MidiFileReader(rawdata);
-        id = file.ReadAscii(4);
-        if (!id.equals("MThd")) {
+        if (file.ReadInt() != ChunkHeader) {
             throw new MidiFileException("Doesn't start with MThd", 0);
         }
         len = file.ReadInt(); 
@@ -468,10 +490,20 @@ public class MidiFile {
         int num_tracks = file.ReadShort();
         quarternote = file.ReadShort(); 
 
-        allevents = new ArrayList<ArrayList<MidiEvent>>();
-        for (int tracknum = 0; tracknum < num_tracks; tracknum++) {
-            allevents.add(ReadTrack(file));
-            MidiTrack track = new MidiTrack(allevents.get(tracknum), tracknum);
+        MidiTrack[] tracklist = null;
+        if (num_tracks >= ParallelMinTracks && 
+            Runtime.getRuntime().availableProcessors() > 1) {
+            tracklist = ReadTracksParallel(rawdata, file.GetOffset(), num_tracks);
+        }
+        if (tracklist == null) {
+            allevents = new ArrayList<MidiEventBuffer>();
+            tracklist = new MidiTrack[num_tracks];
+            for (int tracknum = 0; tracknum < num_tracks; tracknum++) {
+                allevents.add(ReadTrack(file));
+                tracklist[tracknum] = new MidiTrack(allevents.get(tracknum), tracknum);
+            }
+        }
+        for (MidiTrack track : tracklist) {
             if (track.getNotes().size() > 0) {
                 tracks.add(track);
             }
@@ -500,14 +532,17 @@ public class MidiFile {
         long tempo = 0;
         int numer = 0;
         int denom = 0;
-        for (ArrayList<MidiEvent> list : allevents) {
-            for (MidiEvent mevent : list) {
-                if (mevent.Metaevent == MetaEventTempo) {
-                    // Take average of all tempos
-                    tempo += mevent.Tempo;
+        for (MidiEventBuffer events : allevents) {
+            for (int i = 0; i < events.size(); i++) {
+                byte metaevent = events.getMetaevent(i);
+                if (metaevent == MetaEventTempo) {
+                    // Take average of all tempos. This is only used for
+                    // the sheet music, the playback uses the TempoMap.
+                    tempo += events.getTempo(i);
                     tempoCount++;
                 }
-                if (mevent.Metaevent == MetaEventTimeSignature && numer == 0) {
+                if (metaevent == MetaEventTimeSignature && numer == 0) {
+                    MidiEvent mevent = events.getEvent(i);
                     numer = mevent.Numerator;
                     denom = mevent.Denominator;
                 }
@@ -523,144 +558,196 @@ public class MidiFile {
             numer = 4; denom = 4;
         }
         timesig = new TimeSignature(numer, denom, quarternote, (int)tempo);
+
+        tempomap = new TempoMap(allevents, quarternote);
+        notetable = new NoteTable(tracks);
+    }
+
+    /* Files with at least this many tracks are parsed on multiple threads */
+    private static final int ParallelMinTracks = 4;
+
+    private static ExecutorService trackExecutor;  /** Parses the tracks concurrently */
+
+    /** Return the thread pool parsing the tracks, one thread per processor */
+    private static synchronized ExecutorService GetTrackExecutor() {
+        if (trackExecutor == null) {
+            trackExecutor = Executors.newFixedThreadPool(
+                Runtime.getRuntime().availableProcessors(), 
+                new ThreadFactory() {
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "MidiTrack");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        }
+        return trackExecutor;
     }
 
-    /** Parse a single Midi track into a list of MidiEvents.
+    /** Parse all tracks concurrently, starting at the given offset, and
+     * set allevents.  The start of each MTrk chunk is found from the
+     * chunk lengths alone.  Each track is then read by a reader of its
+     * own, and its notes are gathered into a MidiTrack.
+     *
+     * Return the MidiTracks in track order, or null if the tracks can't
+     * be parsed this way: the chunks don't fit in the file, some track
+     * doesn't end exactly at the end of its chunk, or a track has an
+     * error.  The caller then parses the tracks in sequence, which gives
+     * the same result as before, errors included.
+     */
+    private MidiTrack[] 
+    ReadTracksParallel(final ByteBuffer rawdata, int offset, int num_tracks) {
+        final int[] trackstart = new int[num_tracks];
+        final int[] trackend = new int[num_tracks];
+        MidiFileReader file = new MidiFileReader(rawdata);
+        try {
+            file.Skip(offset);
+            for (int tracknum = 0; tracknum < num_tracks; tracknum++) {
+                trackstart[tracknum] = file.GetOffset();
+                if (file.ReadInt() != ChunkTrack) {
+                    return null;
+                }
+                file.Skip(file.ReadInt());
+                trackend[tracknum] = file.GetOffset();
+            }
+        }
+        catch (MidiFileException e) {
+            return null;
+        }
+
+        final MidiEventBuffer[] trackevents = new MidiEventBuffer[num_tracks];
+        ArrayList<Future<MidiTrack>> results = new ArrayList<Future<MidiTrack>>(num_tracks);
+        ExecutorService executor = GetTrackExecutor();
+        for (int i = 0; i < num_tracks; i++) {
+            final int tracknum = i;
+            results.add(executor.submit(new Callable<MidiTrack>() {
+                public MidiTrack call() {
+                    MidiFileReader reader = new MidiFileReader(rawdata);
+                    reader.Skip(trackstart[tracknum]);
+                    MidiEventBuffer events = ReadTrack(reader);
+                    if (reader.GetOffset() != trackend[tracknum]) {
+                        return null;
+                    }
+                    trackevents[tracknum] = events;
+                    return new MidiTrack(events, tracknum);
+                }
+            }));
+        }
+
+        MidiTrack[] tracklist = new MidiTrack[num_tracks];
+        try {
+            for (int tracknum = 0; tracknum < num_tracks; tracknum++) {
+                tracklist[tracknum] = results.get(tracknum).get();
+                if (tracklist[tracknum] == null) {
+                    tracklist = null;
+                    break;
+                }
+            }
+        }
+        catch (ExecutionException e) {
+            tracklist = null;
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            tracklist = null;
+        }
+        if (tracklist == null) {
+            for (Future<MidiTrack> result : results) {
+                result.cancel(true);
+            }
+            return null;
+        }
+        allevents = new ArrayList<MidiEventBuffer>(Arrays.asList(trackevents));
+        return tracklist;
+    }
+
+    /* The number of data bytes of the channel events, by the high
+     * nibble of the status byte.  0 for Sysex and meta events, which
+     * have a variable length, and for data bytes without a status.
+     */
+    private static final int[] DataLengths = {
+        0, 0, 0, 0, 0, 0, 0, 0,
+        2, /* EventNoteOff */
+        2, /* EventNoteOn */
+        2, /* EventKeyPressure */
+        2, /* EventControlChange */
+        1, /* EventProgramChange */
+        1, /* EventChannelPressure */
+        2, /* EventPitchBend */
+        0  /* SysexEvent1, SysexEvent2, MetaEvent */
+    };
+
+    /** Parse a single Midi track into a packed buffer of MidiEvents.
      * Entering this function, the file offset should be at the start of
      * the MTrk header.  Upon exiting, the file offset should be at the
      * start of the next MTrk header.
      */
-    private ArrayList<MidiEvent> ReadTrack(MidiFileReader file) {
-        ArrayList<MidiEvent> result = new ArrayList<MidiEvent>(20);
+    private MidiEventBuffer ReadTrack(MidiFileReader file) {
         int starttime = 0;
-        String id = file.ReadAscii(4);
-
-        if (!id.equals("MTrk")) {
+        if (file.ReadInt() != ChunkTrack) {
             throw new MidiFileException("Bad MTrk header", file.GetOffset() - 4);
         }
         int tracklen = file.ReadInt();
         int trackend = tracklen + file.GetOffset();
 
-        byte eventflag = 0;
+        /* Most events take 3 or 4 bytes.  The track length comes from
+         * the file, so don't trust it beyond the bytes actually left.
+         */
+        int available = Math.min(tracklen, file.GetLength() - file.GetOffset());
+        MidiEventBuffer result = new MidiEventBuffer(available / 3);
+        int eventflag = 0;
 
         while (file.GetOffset() < trackend) {
 
             // If the midi file is truncated here, we can still recover.
             // Just return what we've parsed so far.
 
-            int startoffset, deltatime;
             byte peekevent;
             try {
-                startoffset = file.GetOffset();
-                deltatime = file.ReadVarlen();
-                starttime += deltatime;
+                starttime += file.ReadVarlen();
                 peekevent = file.Peek();
             }
             catch (MidiFileException e) {
                 return result;
             }
 
-            MidiEvent mevent = new MidiEvent();
-            result.add(mevent);
-            mevent.DeltaTime = deltatime;
-            mevent.StartTime = starttime;
-
-            // if (peekevent >= EventNoteOff) { 
+            boolean haseventflag = false;
             if (peekevent < 0) {
-                mevent.HasEventflag = true; 
-                eventflag = file.ReadByte();
+                haseventflag = true; 
+                eventflag = file.ReadByte() & 0xFF;
             }
 
-            //Log.e("debug",  "offset " + startoffset + 
-            //                " event " + eventflag + " " + EventName(eventflag) +
-            //                " start " + starttime + " delta " + mevent.DeltaTime);
-
-            if (eventflag >= EventNoteOn && eventflag < EventNoteOn + 16) {
-                mevent.EventFlag = EventNoteOn;
-                mevent.Channel = ((byte)(eventflag - EventNoteOn));
-                mevent.Notenumber = file.ReadByte();
-                mevent.Velocity = file.ReadByte();
-            }
-            else if (eventflag >= EventNoteOff && eventflag < EventNoteOff + 16) {
-                mevent.EventFlag = EventNoteOff;
-                mevent.Channel = ((byte)(eventflag - EventNoteOff));
-                mevent.Notenumber = file.ReadByte();
-                mevent.Velocity = file.ReadByte();
+            int datalength = DataLengths[eventflag >> 4];
+            if (datalength == 2) {
+                byte data1 = file.ReadByte();
+                byte data2 = file.ReadByte();
+                result.add(starttime, eventflag, data1, data2, haseventflag);
             }
-            else if (eventflag >= EventKeyPressure && 
-                     eventflag < EventKeyPressure + 16) {
-                mevent.EventFlag = EventKeyPressure;
-                mevent.Channel = ((byte)(eventflag - EventKeyPressure));
-                mevent.Notenumber = file.ReadByte();
-                mevent.KeyPressure = file.ReadByte();
+            else if (datalength == 1) {
+                result.add(starttime, eventflag, file.ReadByte(), 0, haseventflag);
             }
-            else if (eventflag >= EventControlChange && 
-                     eventflag < EventControlChange + 16) {
-                mevent.EventFlag = EventControlChange;
-                mevent.Channel = ((byte)(eventflag - EventControlChange));
-                mevent.ControlNum = file.ReadByte();
-                mevent.ControlValue = file.ReadByte();
+            else if (eventflag == (SysexEvent1 & 0xFF) || eventflag == (SysexEvent2 & 0xFF)) {
+                int metalength = file.ReadVarlen();
+                result.addValue(starttime, eventflag, 0, file.ReadSlice(metalength), haseventflag);
             }
-            else if (eventflag >= EventProgramChange && 
-                     eventflag < EventProgramChange + 16) {
-                mevent.EventFlag = EventProgramChange;
-                mevent.Channel = ((byte)(eventflag - EventProgramChange));
-                mevent.Instrument = file.ReadByte();
-            }
-            else if (eventflag >= EventChannelPressure && 
-                     eventflag < EventChannelPressure + 16) {
-                mevent.EventFlag = EventChannelPressure;
-                mevent.Channel = ((byte)(eventflag - EventChannelPressure));
-                mevent.ChanPressure = file.ReadByte();
-            }
-            else if (eventflag >= EventPitchBend && 
-                     eventflag < EventPitchBend + 16) {
-                mevent.EventFlag = EventPitchBend;
-                mevent.Channel = ((byte)(eventflag - EventPitchBend));
-                mevent.PitchBend = (short) file.ReadShort();
-            }
-            else if (eventflag == SysexEvent1) {
-                mevent.EventFlag = SysexEvent1;
-                mevent.Metalength = file.ReadVarlen();
-                mevent.Value = file.ReadBytes(mevent.Metalength);
-            }
-            else if (eventflag == SysexEvent2) {
-                mevent.EventFlag = SysexEvent2;
-                mevent.Metalength = file.ReadVarlen();
-                mevent.Value = file.ReadBytes(mevent.Metalength);
-            }
-            else if (eventflag == MetaEvent) {
-                mevent.EventFlag = MetaEvent;
-                mevent.Metaevent = file.ReadByte();
-                mevent.Metalength = file.ReadVarlen();
-                mevent.Value = file.ReadBytes(mevent.Metalength);
-                if (mevent.Metaevent == MetaEventTimeSignature) {
-                    if (mevent.Metalength < 2) {
-                        throw new MidiFileException(
-                          "Meta Event Time Signature len == " + mevent.Metalength  + 
-                          " != 4", file.GetOffset());
-                    }
-                    else {
-                        mevent.Numerator = ((byte)mevent.Value[0]);
-                        mevent.Denominator = ((byte)Math.pow(2, mevent.Value[1]));
-                    }
+            else if (eventflag == (MetaEvent & 0xFF)) {
+                byte metaevent = file.ReadByte();
+                int metalength = file.ReadVarlen();
+                ByteBuffer value = file.ReadSlice(metalength);
+                if (metaevent == MetaEventTimeSignature && metalength < 2) {
+                    throw new MidiFileException(
+                      "Meta Event Time Signature len == " + metalength  + 
+                      " != 4", file.GetOffset());
                 }
-                else if (mevent.Metaevent == MetaEventTempo) {
-                    if (mevent.Metalength != 3) {
-                        throw new MidiFileException(
-                          "Meta Event Tempo len == " + mevent.Metalength +
-                          " != 3", file.GetOffset());
-                    }
-                    mevent.Tempo = ((mevent.Value[0] & 0xFF) << 16) | 
-                                   ((mevent.Value[1] & 0xFF) << 8) | 
-                                    (mevent.Value[2] & 0xFF);
-                }
-                else if (mevent.Metaevent == MetaEventEndOfTrack) {
-                    /* break;  */
+                else if (metaevent == MetaEventTempo && metalength != 3) {
+                    throw new MidiFileException(
+                      "Meta Event Tempo len == " + metalength +
+                      " != 3", file.GetOffset());
                 }
+                result.addValue(starttime, eventflag, metaevent, value, haseventflag);
             }
             else {
-                throw new MidiFileException("Unknown event " + mevent.EventFlag,
+                throw new MidiFileException("Unknown event " + eventflag,
                                              file.GetOffset()-1); 
             }
         }
@@ -756,12 +843,15 @@ public class MidiFile {
     }
 
 
-    /** Copy len bytes from src to dest, at the given offsets */
-    private static void
-    ArrayCopy(byte[] src, int srcoffset, byte[] dest, int destoffset, int len) {
-        for (int i = 0; i < len; i++) {
-            dest[destoffset + i] = src[srcoffset + i];
-        }
+    /** Copy the raw value of a Sysex or meta event to the buffer at the
+     * given offset.  Return the number of bytes copied.
+     */
+    static int ValueToBytes(ByteBuffer value, byte[] buf, int offset) {
+        ByteBuffer source = value.duplicate();
+        source.rewind();
+        int len = source.remaining();
+        source.get(buf, offset, len);
+        return len;
     }
 
             
@@ -847,13 +937,13 @@ public class MidiFile {
                 }
                 else if (mevent.EventFlag == SysexEvent1) {
                     int offset = VarlenToBytes(mevent.Metalength, buf, 0);
-                    ArrayCopy(mevent.Value, 0, buf, offset, mevent.Value.length);
-                    file.write(buf, 0, offset + mevent.Value.length);
+                    int valuelen = ValueToBytes(mevent.Value, buf, offset);
+                    file.write(buf, 0, offset + valuelen);
                 }
                 else if (mevent.EventFlag == SysexEvent2) {
                     int offset = VarlenToBytes(mevent.Metalength, buf, 0);
-                    ArrayCopy(mevent.Value, 0, buf, offset, mevent.Value.length);
-                    file.write(buf, 0, offset + mevent.Value.length);
+                    int valuelen = ValueToBytes(mevent.Value, buf, offset);
+                    file.write(buf, 0, offset + valuelen);
                 }
                 else if (mevent.EventFlag == MetaEvent && mevent.Metaevent == MetaEventTempo) {
                     buf[0] = mevent.Metaevent;
@@ -866,8 +956,8 @@ public class MidiFile {
                 else if (mevent.EventFlag == MetaEvent) {
                     buf[0] = mevent.Metaevent;
                     int offset = VarlenToBytes(mevent.Metalength, buf, 1) + 1;
-                    ArrayCopy(mevent.Value, 0, buf, offset, mevent.Value.length);
-                    file.write(buf, 0, offset + mevent.Value.length);
+                    int valuelen = ValueToBytes(mevent.Value, buf, offset);
+                    file.write(buf, 0, offset + valuelen);
                 }
             }
         }
@@ -1618,13 +1708,13 @@ public class MidiFile {
      * channel into a separate track.
      */
     private static ArrayList<MidiTrack> 
-    SplitChannels(MidiTrack origtrack, ArrayList<MidiEvent> events) {
+    SplitChannels(MidiTrack origtrack, MidiEventBuffer events) {
 
         /* Find the instrument used for each channel */
         int[] channelInstruments = new int[16];
-        for (MidiEvent mevent : events) {
-            if (mevent.EventFlag == EventProgramChange) {
-                channelInstruments[mevent.Channel] = mevent.Instrument;
+        for (int i = 0; i < events.size(); i++) {
+            if (events.getEventFlag(i) == EventProgramChange) {
+                channelInstruments[events.getChannel(i)] = events.getData1(i);
             }
         }
         channelInstruments[9] = 128; /* Channel 9 = Percussion */
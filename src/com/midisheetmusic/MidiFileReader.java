@@ -14,8 +14,7 @@
 package com.midisheetmusic;
 
 import java.io.*;
-import android.util.*;
-
+import java.nio.ByteBuffer;
 
 
 /** @class MidiFileReader
@@ -31,48 +30,34 @@ import android.util.*;
  *   int is described at the top of this file.
  * - Skip ahead a given number of bytes
  * - Return the current offset.
+ *
+ * The data is kept in a ByteBuffer, which may be a heap buffer wrapping
+ * a byte[] or a direct or memory mapped buffer of the file.  Payloads
+ * can be sliced off the buffer without copying them.
  */
 
 public class MidiFileReader {
-    private byte[] data;       /** The entire midi file data */
+    private ByteBuffer data;   /** The entire midi file data */
     private int parse_offset;  /** The current offset while parsing */
-
-    /** Create a new MidiFileReader for the given filename */
-    /** Not used
-    public MidiFileReader(String filename) {
-        try { 
-            File info = new File(filename);
-            FileInputStream file = new FileInputStream(filename);
-            data = new byte[ (int)info.length() ];
-            int offset = 0;
-            int len = (int)info.length();
-            while (true) {
-                if (offset == len)
-                    break;
-                int n = file.read(data, offset, len- offset);
-                if (n <= 0)
-                    break;
-                offset += n;
-            }
-            file.close();
-
-            parse_offset = 0;
-        }
-        catch (IOException e) {
-            throw new MidiFileException("Cannot open file " + filename, 0);
-        }
-    }
-    **/
+    private int length;        /** The length of the midi file data */
 
     /** Create a new MidiFileReader from the given data */
     public MidiFileReader(byte[] bytes) {
-        data = bytes;
+        this(ByteBuffer.wrap(bytes));
+    }
+
+    /** Create a new MidiFileReader from the remaining bytes of the buffer.
+     * The buffer's position and limit are not changed.
+     */
+    public MidiFileReader(ByteBuffer buffer) {
+        data = buffer.slice();
+        length = data.limit();
         parse_offset = 0;
     }
 
     /** Check that the given number of bytes doesn't exceed the file size */
     private void checkRead(int amount) {
-        if (parse_offset + amount > data.length) {
+        if (amount < 0 || amount > length - parse_offset) {
             throw new MidiFileException("File is truncated", parse_offset);
         }
     }
@@ -80,13 +65,13 @@ public class MidiFileReader {
     /** Read the next byte in the file, but don't increment the parse offset */
     public byte Peek() {
         checkRead(1);
-        return data[parse_offset];
+        return data.get(parse_offset);
     }
 
     /** Read a byte from the file */
     public byte ReadByte() { 
         checkRead(1);
-        byte x = data[parse_offset];
+        byte x = data.get(parse_offset);
         parse_offset++;
         return x;
     }
@@ -95,18 +80,29 @@ public class MidiFileReader {
     public byte[] ReadBytes(int amount) {
         checkRead(amount);
         byte[] result = new byte[amount];
-        for (int i = 0; i < amount; i++) {
-            result[i] = (byte)(data[i + parse_offset]);
-        }
+        ByteBuffer source = data.duplicate();
+        source.position(parse_offset);
+        source.get(result);
         parse_offset += amount;
         return result;
     }
 
+    /** Read the given number of bytes from the file as a slice of the
+     * file data, without copying them.
+     */
+    public ByteBuffer ReadSlice(int amount) {
+        checkRead(amount);
+        ByteBuffer source = data.duplicate();
+        source.position(parse_offset);
+        source.limit(parse_offset + amount);
+        parse_offset += amount;
+        return source.slice();
+    }
+
     /** Read a 16-bit short from the file */
     public int ReadShort() {
         checkRead(2);
-        int x = ((data[parse_offset] & 0xFF) << 8) | 
-                 (data[parse_offset+1] & 0xFF);
+        int x = data.getShort(parse_offset) & 0xFFFF;
         parse_offset += 2;
         return x;
     }
@@ -114,25 +110,21 @@ public class MidiFileReader {
     /** Read a 32-bit int from the file */
     public int ReadInt() {
         checkRead(4);
-        int x =  ((data[parse_offset] & 0xFF) << 24) | 
-                 ((data[parse_offset+1] & 0xFF) << 16) |
-                 ((data[parse_offset+2] & 0xFF) << 8) | 
-                  (data[parse_offset+3] & 0xFF);
+        int x = data.getInt(parse_offset);
         parse_offset += 4;
         return x;
     }
 
     /** Read an ascii String with the given length */
     public String ReadAscii(int len) {
-        checkRead(len);
+        byte[] bytes = ReadBytes(len);
         String s = "";
         try {
-            s = new String(data, parse_offset, len, "US-ASCII");
+            s = new String(bytes, "US-ASCII");
         }
         catch (UnsupportedEncodingException e) {
-            s = new String(data, parse_offset, len);
+            s = new String(bytes);
         }
-        parse_offset += len;
         return s;
     }
 
@@ -141,22 +133,31 @@ public class MidiFileReader {
      * (a byte less than 0x80).
      */
     public int ReadVarlen() {
-        int result = 0;
-        byte b;
-
-        b = ReadByte();
-        result = (int)(b & 0x7f);
-
-        for (int i = 0; i < 3; i++) {
-            if ((b & 0x80) != 0) {
-                b = ReadByte();
-                result = (int)( (result << 7) + (b & 0x7f) );
-            }
-            else {
-                break;
-            }
+        if (parse_offset + 4 > length) {
+            return ReadVarlenNearEnd();
+        }
+
+        /* At least 4 bytes are left, so no byte needs its own check */
+        int offset = parse_offset;
+        byte b = data.get(offset++);
+        int result = b & 0x7f;
+        for (int i = 0; i < 3 && b < 0; i++) {
+            b = data.get(offset++);
+            result = (result << 7) + (b & 0x7f);
+        }
+        parse_offset = offset;
+        return result;
+    }
+
+    /** Read a variable-length integer within the last 4 bytes of the file */
+    private int ReadVarlenNearEnd() {
+        byte b = ReadByte();
+        int result = b & 0x7f;
+        for (int i = 0; i < 3 && b < 0; i++) {
+            b = ReadByte();
+            result = (result << 7) + (b & 0x7f);
         }
-        return (int)result;
+        return result;
     }
 
     /** Skip over the given number of bytes */ 
@@ -170,10 +171,14 @@ public class MidiFileReader {
         return parse_offset;
     }
 
-    /** Return the raw midi file byte data */
-    public byte[] GetData() {
-        return data;
+    /** Return the length of the midi file data */
+    public int GetLength() {
+        return length;
     }
-}
 
+    /** Return the raw midi file data */
+    public ByteBuffer GetData() {
+        return data.duplicate();
+    }
+}
 
@@ -27,13 +27,18 @@ import java.util.*;
  * and added to the track, using the AddNote() method.
  * 
  * The NoteOff() method is called when a NoteOff event is encountered,
- * in order to update the duration of the MidiNote.
+ * in order to update the duration of the MidiNote.  While the track is
+ * created, the open notes (with duration 0) of each channel and note
+ * number are kept as a stack, so a NoteOff finds the most recent open
+ * note without searching the list of notes.
  */ 
 public class MidiTrack {
     private int tracknum;                 /** The track number */
     private ArrayList<MidiNote> notes;    /** List of Midi notes */
     private int instrument;               /** Instrument for this track */
     private ArrayList<MidiEvent> lyrics;  /** The lyrics in this track */
+    private int[] openNotes;      /** The index of the last open note, by channel*128 + number, or -1 */
+    private int[] prevOpenNotes;  /** The index of the previous open note with the same channel and number */
 
     /** Create an empty MidiTrack.  Used by the Clone method */
     public MidiTrack(int tracknum) {
@@ -42,39 +47,42 @@ public class MidiTrack {
         instrument = 0;
     } 
 
-    /** Create a MidiTrack based on the Midi events.  Extract the NoteOn/NoteOff
-     *  events to gather the list of MidiNotes.
+    /** Create a MidiTrack based on the packed Midi events.  Extract the
+     *  NoteOn/NoteOff events to gather the list of MidiNotes.
      */
-    public MidiTrack(ArrayList<MidiEvent> events, int tracknum) {
+    public MidiTrack(MidiEventBuffer events, int tracknum) {
         this.tracknum = tracknum;
         notes = new ArrayList<MidiNote>(events.size());
         instrument = 0;
- 
-        for (MidiEvent mevent : events) {
-            if (mevent.EventFlag == MidiFile.EventNoteOn && mevent.Velocity > 0) {
-                MidiNote note = new MidiNote(mevent.StartTime, mevent.Channel, mevent.Notenumber, 0);
+        StartOpenNotes(events.size());
+
+        for (int i = 0; i < events.size(); i++) {
+            byte eventflag = events.getEventFlag(i);
+            if (eventflag == MidiFile.EventNoteOn && events.getData2(i) > 0) {
+                MidiNote note = new MidiNote(events.getStartTime(i), events.getChannel(i),
+                                             events.getData1(i), 0);
                 AddNote(note);
             }
-            else if (mevent.EventFlag == MidiFile.EventNoteOn && mevent.Velocity == 0) {
-                NoteOff(mevent.Channel, mevent.Notenumber, mevent.StartTime);
+            else if (eventflag == MidiFile.EventNoteOn && events.getData2(i) == 0) {
+                NoteOff(events.getChannel(i), events.getData1(i), events.getStartTime(i));
             }
-            else if (mevent.EventFlag == MidiFile.EventNoteOff) {
-                NoteOff(mevent.Channel, mevent.Notenumber, mevent.StartTime);
+            else if (eventflag == MidiFile.EventNoteOff) {
+                NoteOff(events.getChannel(i), events.getData1(i), events.getStartTime(i));
             }
-            else if (mevent.EventFlag == MidiFile.EventProgramChange) {
-                instrument = mevent.Instrument;
+            else if (eventflag == MidiFile.EventProgramChange) {
+                instrument = events.getData1(i);
             }
-            else if (mevent.Metaevent == MidiFile.MetaEventLyric) {
+            else if (events.getMetaevent(i) == MidiFile.MetaEventLyric) {
+                MidiEvent mevent = events.getEvent(i);
                 AddLyric(mevent);
-                if (lyrics == null) {
-                    lyrics = new ArrayList<MidiEvent>();
-                }
                 lyrics.add(mevent);
             }
         }
         if (notes.size() > 0 && notes.get(0).getChannel() == 9)  {
             instrument = 128;  /* Percussion */
         }
+        openNotes = null;
+        prevOpenNotes = null;
     }
 
     public int trackNumber() { return tracknum; }
@@ -94,15 +102,59 @@ public class MidiTrack {
                   return "";
             }
 
+    /** Start keeping the stacks of open notes, while the track is created */
+    private void StartOpenNotes(int capacity) {
+        openNotes = new int[16 * 128];
+        Arrays.fill(openNotes, -1);
+        prevOpenNotes = new int[Math.max(capacity, 16)];
+    }
+
+    /** Return the index of the channel and note number in openNotes,
+     *  or -1 if they are out of range.
+     */
+    private static int OpenNoteKey(int channel, int notenumber) {
+        if (channel < 0 || channel >= 16 || notenumber < 0 || notenumber >= 128) {
+            return -1;
+        }
+        return channel * 128 + notenumber;
+    }
+
     /** Add a MidiNote to this track.  This is called for each NoteOn event */
     public void AddNote(MidiNote m) {
         notes.add(m);
+        if (openNotes == null || m.getDuration() != 0) {
+            return;
+        }
+        int key = OpenNoteKey(m.getChannel(), m.getNumber());
+        if (key >= 0) {
+            int index = notes.size() - 1;
+            if (index == prevOpenNotes.length) {
+                prevOpenNotes = Arrays.copyOf(prevOpenNotes, index * 2);
+            }
+            prevOpenNotes[index] = openNotes[key];
+            openNotes[key] = index;
+        }
     }
 
     /** A NoteOff event occured.  Find the MidiNote of the corresponding
      * NoteOn event, and update the duration of the MidiNote.
+     * This is the most recent note with the same channel and number
+     * that is still open (has duration 0).
      */
     public void NoteOff(int channel, int notenumber, int endtime) {
+        int key = OpenNoteKey(channel, notenumber);
+        if (openNotes != null && key >= 0) {
+            int index = openNotes[key];
+            if (index >= 0) {
+                MidiNote note = notes.get(index);
+                note.NoteOff(endtime);
+                /* A note ending at its start time stays open */
+                if (note.getDuration() != 0) {
+                    openNotes[key] = prevOpenNotes[index];
+                }
+            }
+            return;
+        }
         for (int i = notes.size()-1; i >= 0; i--) {
             MidiNote note = notes.get(i);
             if (note.getChannel() == channel && note.getNumber() == notenumber &&
@@ -0,0 +1,170 @@
+/*
+ * Copyright (c) 2007-2011 Madhav Vaidyanathan
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License version 2.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ */
+
+
+package com.midisheetmusic;
+
+import java.util.*;
+
+
+/** @class NoteTable
+ * The NoteTable is a packed, read-only copy of the MidiNotes of all
+ * tracks.  Instead of one object per note, it stores parallel int
+ * arrays, sorted by start time (and by note number for equal start
+ * times):
+ *
+ * starttime - The time (measured in pulses) when the note is pressed.
+ * duration  - The duration (measured in pulses) of the note.
+ * number    - The note number, from 0 to 127.
+ * channel   - The channel the note is from.
+ * track     - The track number of the MidiTrack the note is from.
+ *
+ * A note is referred to by its index into these arrays.  For each
+ * track, the indices of its notes are precomputed, in the same order.
+ *
+ * The NoteTable is created once, after the MidiFile is parsed, and is
+ * used by the playback, drawing and input matching code, which walk
+ * over the notes many times a second.
+ */
+public class NoteTable {
+    private int[] starttimes;    /** The start time of each note, in pulses */
+    private int[] durations;     /** The duration of each note, in pulses */
+    private int[] numbers;       /** The note number of each note */
+    private int[] channels;      /** The channel of each note */
+    private int[] tracks;        /** The track number of each note */
+    private int[][] tracknotes;  /** For each track, the indices of its notes */
+    private int maxduration;     /** The longest duration of any note */
+
+    /** Create a new NoteTable from the notes of the given tracks */
+    public NoteTable(ArrayList<MidiTrack> miditracks) {
+        int count = 0;
+        for (MidiTrack track : miditracks) {
+            count += track.getNotes().size();
+        }
+
+        /* Collect all the notes, remembering the track they belong to */
+        final MidiNote[] notes = new MidiNote[count];
+        int[] notetracks = new int[count];
+        int[] trackcounts = new int[miditracks.size()];
+        int i = 0;
+        for (int t = 0; t < miditracks.size(); t++) {
+            for (MidiNote note : miditracks.get(t).getNotes()) {
+                notes[i] = note;
+                notetracks[i] = t;
+                i++;
+            }
+            trackcounts[t] = miditracks.get(t).getNotes().size();
+        }
+
+        /* Sort by start time, then note number. The sort is stable,
+         * so notes of equal start and number stay in track order.
+         */
+        Integer[] order = new Integer[count];
+        for (i = 0; i < count; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer x, Integer y) {
+                MidiNote n1 = notes[x];
+                MidiNote n2 = notes[y];
+                return n1.compare(n1, n2);
+            }
+        });
+
+        starttimes = new int[count];
+        durations = new int[count];
+        numbers = new int[count];
+        channels = new int[count];
+        tracks = new int[count];
+        tracknotes = new int[miditracks.size()][];
+        for (int t = 0; t < miditracks.size(); t++) {
+            tracknotes[t] = new int[trackcounts[t]];
+            trackcounts[t] = 0;
+        }
+        maxduration = 0;
+
+        for (i = 0; i < count; i++) {
+            MidiNote note = notes[order[i]];
+            int t = notetracks[order[i]];
+            starttimes[i] = note.getStartTime();
+            durations[i] = note.getDuration();
+            numbers[i] = note.getNumber();
+            channels[i] = note.getChannel();
+            tracks[i] = miditracks.get(t).trackNumber();
+            tracknotes[t][trackcounts[t]] = i;
+            trackcounts[t]++;
+            maxduration = Math.max(maxduration, note.getDuration());
+        }
+    }
+
+    /** Return the number of notes */
+    public int size() { return starttimes.length; }
+
+    public int getStartTime(int note) { return starttimes[note]; }
+
+    public int getDuration(int note) { return durations[note]; }
+
+    public int getEndTime(int note) { return starttimes[note] + durations[note]; }
+
+    public int getNumber(int note) { return numbers[note]; }
+
+    public int getChannel(int note) { return channels[note]; }
+
+    /** Return the track number (MidiTrack.trackNumber()) of the note */
+    public int getTrack(int note) { return tracks[note]; }
+
+    /** Return the number of tracks */
+    public int getNumTracks() { return tracknotes.length; }
+
+    /** Return the indices of the notes of the given track, where track
+     *  is the position of the track in MidiFile.getTracks().
+     */
+    public int[] getTrackNotes(int track) { return tracknotes[track]; }
+
+    /** Return the longest duration of any note, in pulses */
+    public int getMaxDuration() { return maxduration; }
+
+    /** Return the index of the first note whose start time is not
+     *  before the given time (in pulses).  If every note starts before
+     *  the time, return size().
+     */
+    public int FirstNoteAtOrAfter(double pulsetime) {
+        int low = 0;
+        int high = starttimes.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (starttimes[mid] < pulsetime) {
+                low = mid + 1;
+            }
+            else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /** Return the index of the first note which may still be sounding at
+     *  the given time (in pulses).  No note before it ends after the time,
+     *  since it would have to be longer than the longest duration.  The
+     *  notes sounding at the time are among the ones from this index up to
+     *  FirstNoteAtOrAfter(pulsetime).
+     */
+    public int FirstNoteSoundingAt(double pulsetime) {
+        return FirstNoteAtOrAfter(pulsetime - maxduration);
+    }
+
+    @Override
+    public String toString() {
+        return "NoteTable notes=" + starttimes.length + " tracks=" + tracknotes.length;
+    }
+}
+
@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) 2007-2011 Madhav Vaidyanathan
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License version 2.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ */
+
+
+package com.midisheetmusic;
+
+import java.util.*;
+
+
+/** @class TempoMap
+ * The TempoMap converts between times in pulses and times in
+ * milliseconds, taking every Tempo meta event of the midi file into
+ * account.  Midi files measure time in pulses, and the Tempo events
+ * give the number of microseconds per quarter note from their start
+ * time onwards.  Until the first Tempo event, the tempo is 500,000
+ * microseconds per quarter note.
+ *
+ * The map is a prefix table of breakpoints, one per tempo change.
+ * For each breakpoint it stores:
+ *
+ * pulse - The time (in pulses) the tempo changes.
+ * micro - The time (in microseconds) the tempo changes, which is the
+ *         sum of all the segments before it.
+ * tempo - The number of microseconds per quarter note from then on.
+ *
+ * A conversion in either direction is a binary search for the
+ * segment, followed by a linear interpolation inside the segment.
+ */
+public class TempoMap {
+    private int[] pulses;      /** The start of each segment, in pulses */
+    private long[] micros;     /** The start of each segment, in microseconds */
+    private int[] tempos;      /** The microseconds per quarter note in each segment */
+    private int quarternote;   /** The number of pulses per quarter note */
+
+    /** The tempo used before the first Tempo event */
+    public static final int DefaultTempo = 500000;
+
+    /** Create a new TempoMap from the Tempo events of all tracks */
+    public TempoMap(ArrayList<MidiEventBuffer> allevents, int quarternote) {
+        this.quarternote = quarternote;
+
+        /* Collect the tempo events of all tracks, sorted by start time */
+        ArrayList<MidiEvent> events = new ArrayList<MidiEvent>();
+        for (MidiEventBuffer list : allevents) {
+            for (int i = 0; i < list.size(); i++) {
+                if (list.getMetaevent(i) == MidiFile.MetaEventTempo && list.getTempo(i) > 0) {
+                    events.add(list.getEvent(i));
+                }
+            }
+        }
+        if (events.size() > 0) {
+            Collections.sort(events, events.get(0));
+        }
+
+        ListInt changepulses = new ListInt(events.size() + 1);
+        ListInt changetempos = new ListInt(events.size() + 1);
+        changepulses.add(0);
+        changetempos.add(DefaultTempo);
+        for (MidiEvent mevent : events) {
+            int last = changepulses.size() - 1;
+            if (mevent.StartTime == changepulses.get(last)) {
+                /* A later event at the same time replaces the tempo */
+                changetempos.set(last, mevent.Tempo);
+            }
+            else if (mevent.Tempo != changetempos.get(last)) {
+                changepulses.add(mevent.StartTime);
+                changetempos.add(mevent.Tempo);
+            }
+        }
+
+        int count = changepulses.size();
+        pulses = new int[count];
+        micros = new long[count];
+        tempos = new int[count];
+        for (int i = 0; i < count; i++) {
+            pulses[i] = changepulses.get(i);
+            tempos[i] = changetempos.get(i);
+            if (i > 0) {
+                micros[i] = micros[i-1] +
+                            (long)(pulses[i] - pulses[i-1]) * tempos[i-1] / quarternote;
+            }
+        }
+    }
+
+    /** Return the number of tempo segments */
+    public int size() { return pulses.length; }
+
+    /** Return the tempo (microseconds per quarter note) at the given time in pulses */
+    public int getTempo(double pulsetime) {
+        return tempos[SegmentForPulse(pulsetime)];
+    }
+
+    /** Convert a time in pulses into a time in milliseconds */
+    public double PulseToMsec(double pulsetime) {
+        int i = SegmentForPulse(pulsetime);
+        return (micros[i] + (pulsetime - pulses[i]) * tempos[i] / quarternote) / 1000.0;
+    }
+
+    /** Convert a time in milliseconds into a time in pulses */
+    public double MsecToPulse(double msec) {
+        double micro = msec * 1000.0;
+        int i = SegmentForMicro(micro);
+        return pulses[i] + (micro - micros[i]) * quarternote / tempos[i];
+    }
+
+    /** Return the index of the last segment starting at or before the
+     *  given pulse time.  Times before 0 belong to the first segment.
+     */
+    private int SegmentForPulse(double pulsetime) {
+        int low = 0;
+        int high = pulses.length - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (pulses[mid] <= pulsetime) {
+                low = mid;
+            }
+            else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    /** Return the index of the last segment starting at or before the
+     *  given time in microseconds.
+     */
+    private int SegmentForMicro(double micro) {
+        int low = 0;
+        int high = micros.length - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (micros[mid] <= micro) {
+                low = mid;
+            }
+            else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    @Override
+    public String toString() {
+        String result = "TempoMap segments=" + pulses.length + "\n";
+        for (int i = 0; i < pulses.length; i++) {
+            result += "pulse=" + pulses[i] + " msec=" + micros[i] / 1000 + " tempo=" + tempos[i] + "\n";
+        }
+        return result;
+    }
+}
+
@@ -0,0 +1,74 @@
+package org.climprpiano;
+
+/**
+ * The state of the 128 keys, handed from the playback engine to the keyboard view without allocating. The engine
+ * changes the states in a back buffer and publishes them all at once, which copies them into the front buffer and
+ * increments the version. The view only reads the front buffer again when the version changed.
+ */
+public class KeyStates {
+
+	public static final int SOUNDING = 1; // the flag of a key whose note is sounding in the song
+	public static final int PRESSED = 2; // the flag of a key the player holds
+
+	private final int[] states = new int[128]; // the back buffer, only used by the engine
+	private final int[] published = new int[128]; // the front buffer, guarded by this
+	private volatile int version; // incremented whenever the front buffer changed
+	private boolean changed; // true if the back buffer changed since the last publish
+
+	/**
+	 * sets or clears a flag of a key in the back buffer
+	 */
+	public void set(int midiNote, int flag, boolean on) {
+		if (midiNote < 0 || midiNote > 127) {
+			return;
+		}
+		int state = on ? states[midiNote] | flag : states[midiNote] & ~flag;
+		if (state != states[midiNote]) {
+			states[midiNote] = state;
+			changed = true;
+		}
+	}
+
+	/**
+	 * clears a flag of all keys in the back buffer
+	 */
+	public void clear(int flag) {
+		for (int midiNote = 0; midiNote < 128; midiNote++) {
+			set(midiNote, flag, false);
+		}
+	}
+
+	/**
+	 * makes the changes of the back buffer visible to the reader
+	 *
+	 * @return true if anything changed
+	 */
+	public boolean publish() {
+		if (!changed) {
+			return false;
+		}
+		synchronized (this) {
+			System.arraycopy(states, 0, published, 0, 128);
+			version++;
+		}
+		changed = false;
+		return true;
+	}
+
+	/**
+	 * @return the version of the published states, it changes with every publish
+	 */
+	public int getVersion() {
+		return version;
+	}
+
+	/**
+	 * copies the published states into the given array of 128 keys
+	 *
+	 * @return the version of the copied states
+	 */
+	public synchronized int read(int[] keyStates) {
+		System.arraycopy(published, 0, keyStates, 0, 128);
+		return version;
+	}
+}
@@ -0,0 +1,128 @@
+package org.climprpiano;
+
+import java.util.Arrays;
+
+import org.hexiano.SoundController;
+
+import android.os.Handler;
+
+/**
+ * Measures the round-trip latency from the sound output to the key input of the device. A click is played at a fixed
+ * interval and the player presses any key along with it. Each key press is paired with the nearest click, the median
+ * difference of the pairs is the time the key presses arrive late and has to be subtracted from their timestamps.
+ */
+public class LatencyCalibration {
+
+	public interface Listener {
+		// called on the handler thread when the calibration finished, latency is in nsec, success is false if the
+		// player didn't press enough keys along with the clicks
+		void onCalibrationFinished(boolean success, long latency);
+	}
+
+	public static final int CLICK_NOTE = 84; // the note played as click
+	public static final int CLICK_INTERVAL = 750; // the time (msec) between two clicks
+	public static final int NUM_CLICKS = 12; // the number of clicks played
+	public static final int WARMUP_CLICKS = 4; // the first clicks are for getting into the rhythm and aren't measured
+	public static final int MIN_PAIRS = 4; // the number of measured key presses needed for a result
+
+	private SoundController soundController;
+	private Handler handler;
+	private Listener listener;
+
+	private long[] clickTimes = new long[NUM_CLICKS]; // the time (nsec) each click was played
+	private int numClicks;
+	private long[] keyTimes = new long[NUM_CLICKS * 2]; // the time (nsec) of the key presses
+	private int numKeys;
+	private volatile boolean running;
+
+	public LatencyCalibration(SoundController soundController, Handler handler, Listener listener) {
+		this.soundController = soundController;
+		this.handler = handler;
+		this.listener = listener;
+	}
+
+	/**
+	 * starts playing the clicks
+	 */
+	public synchronized void start() {
+		numClicks = 0;
+		numKeys = 0;
+		running = true;
+		handler.post(click);
+	}
+
+	/**
+	 * stops the calibration without a result
+	 */
+	public synchronized void cancel() {
+		running = false;
+		handler.removeCallbacks(click);
+		handler.removeCallbacks(finish);
+		soundController.stop(CLICK_NOTE);
+	}
+
+	/**
+	 * @return true while the clicks are played
+	 */
+	public boolean isRunning() {
+		return running;
+	}
+
+	/**
+	 * records a key press of the player at the given time (nsec), may be called from any thread
+	 */
+	public synchronized void keyPressed(long time) {
+		if (running && numKeys < keyTimes.length) {
+			keyTimes[numKeys++] = time;
+		}
+	}
+
+	private Runnable click = new Runnable() {
+		public void run() {
+			synchronized (LatencyCalibration.this) {
+				if (!running) {
+					return;
+				}
+				soundController.stop(CLICK_NOTE);
+				clickTimes[numClicks++] = PlaybackClock.now();
+				soundController.play(CLICK_NOTE, 127);
+				if (numClicks < NUM_CLICKS) {
+					handler.postDelayed(click, CLICK_INTERVAL);
+				} else {
+					handler.postDelayed(finish, CLICK_INTERVAL);
+				}
+			}
+		}
+	};
+
+	private Runnable finish = new Runnable() {
+		public void run() {
+			long latency;
+			int numPairs;
+			synchronized (LatencyCalibration.this) {
+				if (!running) {
+					return;
+				}
+				running = false;
+				soundController.stop(CLICK_NOTE);
+
+				// pair each key press with its nearest measured click
+				long[] differences = new long[numKeys];
+				numPairs = 0;
+				long window = CLICK_INTERVAL * 1000000L / 2;
+				for (int k = 0; k < numKeys; k++) {
+					for (int c = WARMUP_CLICKS; c < numClicks; c++) {
+						long difference = keyTimes[k] - clickTimes[c];
+						if (Math.abs(difference) < window) {
+							differences[numPairs++] = difference;
+							break;
+						}
+					}
+				}
+				Arrays.sort(differences, 0, numPairs);
+				latency = numPairs > 0 ? differences[numPairs / 2] : 0;
+			}
+			listener.onCalibrationFinished(numPairs >= MIN_PAIRS, latency);
+		}
+	};
+}
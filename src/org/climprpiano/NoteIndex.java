@@ -0,0 +1,98 @@
+package org.climprpiano;
+
+import com.midisheetmusic.NoteTable;
+
+/**
+ * A cursor over the time sorted notes of a {@link NoteTable}. The cursor moves forward with the playing position and the
+ * currently sounding notes are kept in an active set, so advancing the position only touches the notes which start or
+ * end in the elapsed pulse window.
+ */
+public class NoteIndex {
+
+	private NoteTable noteTable; // all notes of all tracks sorted by their start time
+
+	private int cursor; // the index of the first note which has not started yet
+	private double pulseTime; // the pulse time the index is positioned at
+	private int[] activeNotes; // the indices of the notes which are sounding at pulseTime
+	private int numActiveNotes; // the number of valid entries in activeNotes
+
+	public NoteIndex(NoteTable noteTable) {
+		this.noteTable = noteTable;
+		activeNotes = new int[16];
+		seek(0);
+	}
+
+	/**
+	 * moves the index forward to the given pulse time, only looking at the notes which start or end in between
+	 */
+	public void advance(double newPulseTime) {
+		if (newPulseTime < pulseTime) {
+			seek(newPulseTime);
+			return;
+		}
+		pulseTime = newPulseTime;
+
+		// remove the notes which have ended, keeping the order of the others
+		int kept = 0;
+		for (int i = 0; i < numActiveNotes; i++) {
+			if (noteTable.getEndTime(activeNotes[i]) > pulseTime) {
+				activeNotes[kept++] = activeNotes[i];
+			}
+		}
+		numActiveNotes = kept;
+
+		// add the notes which have started and are still sounding
+		while (cursor < noteTable.size() && noteTable.getStartTime(cursor) < pulseTime) {
+			if (noteTable.getEndTime(cursor) > pulseTime) {
+				addActiveNote(cursor);
+			}
+			cursor++;
+		}
+	}
+
+	/**
+	 * positions the index at the given pulse time using a binary search
+	 */
+	public void seek(double newPulseTime) {
+		pulseTime = newPulseTime;
+		cursor = noteTable.FirstNoteAtOrAfter(pulseTime);
+
+		// only notes starting within the longest duration before can still sound
+		numActiveNotes = 0;
+		for (int i = noteTable.FirstNoteSoundingAt(pulseTime); i < cursor; i++) {
+			if (noteTable.getEndTime(i) > pulseTime) {
+				addActiveNote(i);
+			}
+		}
+	}
+
+	private void addActiveNote(int note) {
+		if (numActiveNotes == activeNotes.length) {
+			int[] newActiveNotes = new int[activeNotes.length * 2];
+			System.arraycopy(activeNotes, 0, newActiveNotes, 0, numActiveNotes);
+			activeNotes = newActiveNotes;
+		}
+		activeNotes[numActiveNotes++] = note;
+	}
+
+	/**
+	 * @return the number of notes which are sounding at the current position
+	 */
+	public int getNumActiveNotes() {
+		return numActiveNotes;
+	}
+
+	/**
+	 * @return the note table index of the i-th sounding note, in the order they started
+	 */
+	public int getActiveNote(int i) {
+		return activeNotes[i];
+	}
+
+	/**
+	 * @return the pulse time the index is positioned at
+	 */
+	public double getPulseTime() {
+		return pulseTime;
+	}
+}
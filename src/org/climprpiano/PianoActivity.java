@@ -78,6 +78,7 @@ public class PianoActivity extends AbstractMultipleMidiActivity {
 		super.onCreate(savedInstanceState);
 
 		requestWindowFeature(Window.FEATURE_ACTION_BAR_OVERLAY);
+		requestWindowFeature(Window.FEATURE_PROGRESS);
 
 		setContentView(R.layout.activity_piano);
 
@@ -220,6 +221,12 @@ public class PianoActivity extends AbstractMultipleMidiActivity {
 		pianoManager.setFileUri(file);
 	}
 
+	@Override
+	protected void onDestroy() {
+		pianoManager.release();
+		super.onDestroy();
+	}
+
 	/** When the menu button is pressed, initialize the menus. */
 	@Override
 	public boolean onCreateOptionsMenu(Menu menu) {
@@ -241,6 +248,9 @@ public class PianoActivity extends AbstractMultipleMidiActivity {
 			return true;
 		case R.id.settings:
 			return true;
+		case R.id.calibrate_latency:
+			pianoManager.startLatencyCalibration();
+			return true;
 		case R.id.help:
 			Intent helpIntent = new Intent(this, HelpActivity.class);
 			startActivity(helpIntent);
@@ -402,12 +412,12 @@ public class PianoActivity extends AbstractMultipleMidiActivity {
 
 	@Override
 	public void onDeviceDetached(UsbDevice usbDevice) {
-
+		pianoManager.setInputDevice(null);
 	}
 
 	@Override
 	public void onDeviceAttached(UsbDevice usbDevice) {
-
+		pianoManager.setInputDevice(usbDevice);
 	}
 
 	@Override
@@ -431,12 +441,15 @@ public class PianoActivity extends AbstractMultipleMidiActivity {
 
 	@Override
 	public void onMidiNoteOff(MidiInputDevice sender, int cable, int channel, int note, int velocity) {
-		pianoManager.pianoKeyPress(note, -1);
+		// take the time first, so nothing else adds to the timing of the player
+		long time = PlaybackClock.now();
+		pianoManager.pianoKeyPress(note, -1, time);
 	}
 
 	@Override
 	public void onMidiNoteOn(MidiInputDevice sender, int cable, int channel, int note, int velocity) {
-		pianoManager.pianoKeyPress(note, velocity);
+		long time = PlaybackClock.now();
+		pianoManager.pianoKeyPress(note, velocity, time);
 	}
 
 	@Override
@@ -1,9 +1,7 @@
 package org.climprpiano;
 
-import java.util.HashMap;
-import java.util.Map;
-
 import android.content.Context;
+import android.graphics.Bitmap;
 import android.graphics.Canvas;
 import android.graphics.Color;
 import android.graphics.Paint;
@@ -60,6 +58,9 @@ public class PianoKeyboardView extends View {
 	// the colors for the keys
 	public static final int COLOR_LEFT = Color.BLUE;
 	public static final int COLOR_RIGHT = Color.GREEN;
+	public static final int NO_COLOR = Color.TRANSPARENT; // the color of a key which isn't shaded
+	public static final int COLOR_PRESSED = Color.GREEN; // the color of a key the player holds
+	public static final int COLOR_SOUNDING = Color.RED; // the color of a key whose note is sounding in the song
 
 	private Paint paint; // The paint options for drawing
 	private int width; // the width of the view
@@ -68,7 +69,14 @@ public class PianoKeyboardView extends View {
 	private int keyOffset; // the most left keys midi note
 	private int numKeys; // the number of keys
 	private int[][] keyPositions; // an array containing for each key if it is white the y1 and y2 position
-	private Map<Integer, Integer> shadedKeys; // the used color for each midiKey
+	private int[] keyColors = new int[128]; // the used color for each midi key, NO_COLOR if it isn't shaded
+	private int[] keyStates = new int[128]; // the shown states of the playback engine
+	private int[] newKeyStates = new int[128]; // the states read from the playback engine
+	private int keyStatesVersion = -1; // the version of the shown states
+
+	private Bitmap keyboardBitmap; // the drawn keyboard, only the changed keys are drawn again
+	private Canvas keyboardCanvas; // the canvas drawing into keyboardBitmap
+	private boolean keyboardValid; // false if the whole keyboard has to be drawn again
 
 	public PianoKeyboardView(Context context, AttributeSet attrs) {
 		super(context, attrs);
@@ -77,13 +85,70 @@ public class PianoKeyboardView extends View {
 		paint.setAntiAlias(false);
 
 		setDisplayedKeys(21, 108);
-		shadeKeys(new HashMap<Integer, Integer>());
 	}
 
-	// sets the colors of multiple keys given by the map containing a color
-	// numbers from 0=white to 8
-	public void shadeKeys(Map<Integer, Integer> keyColors) {
-		shadedKeys = keyColors;
+	/**
+	 * sets the color of a single key, only the area of the key is drawn again
+	 *
+	 * @param color
+	 *            the color, or NO_COLOR to remove the shading
+	 */
+	public void shadeKey(int midiNote, int color) {
+		if (midiNote < 0 || midiNote > 127 || keyColors[midiNote] == color) {
+			return;
+		}
+		keyColors[midiNote] = color;
+		int i = midiNote - keyOffset;
+		if (i < 0 || i >= numKeys || keyPositions == null) {
+			return;
+		}
+
+		// a white key is overlapped by the neighbouring black keys and separation lines, so they are drawn again
+		int left = keyPositions[i][1] - 2;
+		int right = keyPositions[i][2] + 3;
+		if (keyboardValid) {
+			keyboardCanvas.save();
+			keyboardCanvas.clipRect(left, 0, right, height);
+			drawKeyboard(keyboardCanvas, left, right);
+			keyboardCanvas.restore();
+		}
+		invalidate(left, 0, right, height);
+	}
+
+	/**
+	 * shades the keys by the states published by the playback engine, only the keys whose state changed are drawn
+	 * again. The keys the player holds are shown over the sounding ones.
+	 */
+	public void updateKeyStates(KeyStates states) {
+		if (states.getVersion() == keyStatesVersion) {
+			return;
+		}
+		keyStatesVersion = states.read(newKeyStates);
+		for (int midiNote = 0; midiNote < 128; midiNote++) {
+			int state = newKeyStates[midiNote];
+			if (state != keyStates[midiNote]) {
+				keyStates[midiNote] = state;
+				if ((state & KeyStates.PRESSED) != 0) {
+					shadeKey(midiNote, COLOR_PRESSED);
+				} else if ((state & KeyStates.SOUNDING) != 0) {
+					shadeKey(midiNote, COLOR_SOUNDING);
+				} else {
+					shadeKey(midiNote, NO_COLOR);
+				}
+			}
+		}
+	}
+
+	/**
+	 * removes the shading of all keys, the next key states are shown in full
+	 */
+	public void clearShading() {
+		for (int midiNote = 0; midiNote < 128; midiNote++) {
+			keyColors[midiNote] = NO_COLOR;
+			keyStates[midiNote] = 0;
+		}
+		keyStatesVersion = -1;
+		keyboardValid = false;
 		invalidate();
 	}
 
@@ -103,6 +168,7 @@ public class PianoKeyboardView extends View {
 		numKeys = endMidiNote - startMidiNote + 1;
 
 		keyPositions = calculateKeyPositions(width, keyOffset, numKeys);
+		keyboardValid = false;
 		invalidate();
 	}
 
@@ -118,6 +184,7 @@ public class PianoKeyboardView extends View {
 				.getDisplayMetrics()) + 4 * keyPositions[0][2]) / 4); // the height is calculated 25% from 4x the width of white key and 75% from 40dp
 
 		setMeasuredDimension(width, height);
+		keyboardValid = false;
 		invalidate();
 	}
 
@@ -125,13 +192,30 @@ public class PianoKeyboardView extends View {
 	private static final int gray2 = Color.rgb(90, 90, 90);
 	private static final int gray3 = Color.rgb(200, 200, 200);
 
-	/** Draw the Keyboard. */
+	/** Draw the Keyboard from the cached bitmap. */
 	@Override
 	protected void onDraw(Canvas canvas) {
-		if (keyPositions == null) {
+		if (keyPositions == null || width <= 0 || height <= 0) {
 			return;
 		}
 
+		if (keyboardBitmap == null || keyboardBitmap.getWidth() != width || keyboardBitmap.getHeight() != height) {
+			if (keyboardBitmap != null) {
+				keyboardBitmap.recycle();
+			}
+			keyboardBitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+			keyboardCanvas = new Canvas(keyboardBitmap);
+			keyboardValid = false;
+		}
+		if (!keyboardValid) {
+			drawKeyboard(keyboardCanvas, 0, width);
+			keyboardValid = true;
+		}
+		canvas.drawBitmap(keyboardBitmap, 0, 0, null);
+	}
+
+	/** Draw the keys between the x positions left and right. */
+	private void drawKeyboard(Canvas canvas, int left, int right) {
 		int borderTop = 2;
 		int borderBottom = keyPositions[0][2] / 2; // the 3d-height is half the width
 		int whiteKeyHeight = height - borderTop - borderBottom;
@@ -140,19 +224,20 @@ public class PianoKeyboardView extends View {
 		canvas.translate(0, borderTop);
 		paint.setStyle(Paint.Style.FILL);
 		paint.setColor(Color.WHITE);
-		canvas.drawRect(0, 0, width, whiteKeyHeight, paint);
+		canvas.drawRect(left, 0, right, whiteKeyHeight, paint);
 		paint.setColor(Color.BLACK);
-		canvas.drawRect(0, whiteKeyHeight, width, height, paint);
+		canvas.drawRect(left, whiteKeyHeight, right, height, paint);
 		paint.setStyle(Paint.Style.STROKE);
 
 		// draw white keys
 		for (int i = 0; i < keyPositions.length; ++i) {
 			int[] key = keyPositions[i];
-			if (key[0] == WHITE_KEY) {
+			if (key[0] == WHITE_KEY && key[2] + 2 >= left && key[1] - 2 <= right) {
 				// fill the key
-				if (shadedKeys.containsKey(i + keyOffset)) {
+				int color = keyColors[i + keyOffset];
+				if (color != NO_COLOR) {
 					paint.setStyle(Paint.Style.FILL);
-					paint.setColor(shadedKeys.get(i + keyOffset));
+					paint.setColor(color);
 					canvas.drawRect(key[1], 0, key[2], whiteKeyHeight, paint);
 				} else if (i + keyOffset == MIDDLE_C) {
 					paint.setStyle(Paint.Style.FILL);
@@ -179,7 +264,7 @@ public class PianoKeyboardView extends View {
 		// draw black keys
 		for (int i = 0; i < keyPositions.length; ++i) {
 			int[] key = keyPositions[i];
-			if (key[0] == BLACK_KEY) {
+			if (key[0] == BLACK_KEY && key[2] + 2 >= left && key[1] - 2 <= right) {
 				int x1 = key[1];
 				int x2 = key[2];
 
@@ -199,9 +284,10 @@ public class PianoKeyboardView extends View {
 				canvas.drawLine(x1 - 2, BlackKeyHeight + 2, x2 + 2, BlackKeyHeight + 2, paint);
 
 				// fill key
-				if (shadedKeys.containsKey(i + keyOffset)) {
+				int color = keyColors[i + keyOffset];
+				if (color != NO_COLOR) {
 					paint.setStyle(Paint.Style.FILL);
-					paint.setColor(shadedKeys.get(i + keyOffset));
+					paint.setColor(color);
 					canvas.drawRect(x1, 0, x2, BlackKeyHeight, paint);
 				} else {
 					paint.setStyle(Paint.Style.FILL);
@@ -219,8 +305,8 @@ public class PianoKeyboardView extends View {
 		// draw the top border
 		paint.setStyle(Paint.Style.FILL);
 		paint.setColor(Color.rgb(80, 30, 0));
-		canvas.drawRect(0, 0, width, 1, paint);
+		canvas.drawRect(left, 0, right, 1, paint);
 		paint.setColor(Color.rgb(120, 40, 0));
-		canvas.drawRect(0, 1, width, 2, paint);
+		canvas.drawRect(left, 1, right, 2, paint);
 	}
 }
@@ -1,12 +1,14 @@
 package org.climprpiano;
 
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.Vector;
 
+import org.climprpiano.util.MidiInputQueue;
+import org.hexiano.MixerSoundController;
+import org.hexiano.SampleDecoder;
+import org.hexiano.SampleLoader;
 import org.hexiano.SoundController;
 import org.json.JSONArray;
 import org.json.JSONObject;
@@ -14,20 +16,19 @@ import org.json.JSONObject;
 import com.midisheetmusic.FileUri;
 import com.midisheetmusic.MidiFile;
 import com.midisheetmusic.MidiFileException;
-import com.midisheetmusic.MidiNote;
-import com.midisheetmusic.MidiTrack;
+import com.midisheetmusic.NoteTable;
+import com.midisheetmusic.TempoMap;
 
-import android.annotation.SuppressLint;
 import android.content.Context;
 import android.content.SharedPreferences;
-import android.graphics.Color;
+import android.hardware.usb.UsbDevice;
 import android.os.Handler;
-import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.util.Log;
+import android.view.Window;
 import android.view.WindowManager;
+import android.widget.Toast;
 
-@SuppressLint("UseSparseArrays")
 public class PianoManager {
 
 	enum PlayMode {
@@ -42,6 +43,9 @@ public class PianoManager {
 		NONE, ALL, SINGLE
 	}
 
+	public static final int START_MEASURES = 2; // the measures whose samples have to be loaded to start playing
+	public static final int LOAD_CHECK_INTERVAL = 100; // the time (msec) between checks if the samples are loaded
+
 	// the graphical components
 	private PianoRollView pianoRollView;
 	private PianoKeyboardView pianoKeyboardView;
@@ -58,12 +62,16 @@ public class PianoManager {
 	private List<Double> loopMarks;
 
 	// variables for handling the playing
-	private PianoPlaying pianoPlaying;
-	private ArrayList<MidiNote> lastChord;
+	private volatile PianoPlaying pianoPlaying;
+	private volatile ScoreFollower scoreFollower; // matches the pressed keys to the notes of the song
+	private PlaybackEngine playbackEngine; // plays the song on its own thread
+	private volatile boolean positionChangePosted; // true while a position update of the engine waits for the UI
+	private volatile boolean keyStatesChangePosted; // true while a key state update of the engine waits for the UI
+	private volatile long inputLatency; // the time (nsec) the key presses of the input device arrive late
+	private String inputDeviceKey = "default"; // the key of the input device in the latency preferences
+	private volatile LatencyCalibration latencyCalibration; // the running latency calibration, or null
 	Handler timer; //Timer used to update the sheet music while playing
-	long startTime; // Absolute time when music started playing (msec)
 	double startPulseTime; // Time (in pulses) when music started playing
-	double pulsesPerMsec; // The number of pulses per millisec
 
 	// the song uri and midifile
 	private FileUri fileUri;
@@ -76,13 +84,36 @@ public class PianoManager {
 		this.pianoKeyboardView = pianoKeyboardView;
 		this.pianoActivity = pianoActivity;
 
-		initOptions();
+		timer = new Handler();
+
+		// the software mixer needs a decoder for the samples
+		SharedPreferences sharedPref = PreferenceManager.getDefaultSharedPreferences(pianoActivity);
+		if (sharedPref.getBoolean("pref_software_mixer", false) && SampleDecoder.isAvailable()) {
+			soundController = new MixerSoundController(this.pianoActivity.getApplicationContext());
+		} else {
+			soundController = new SoundController(this.pianoActivity.getApplicationContext());
+		}
 
-		lastChord = new ArrayList<MidiNote>();
+		soundController.getLoader().setListener(loadListener);
 
-		timer = new Handler();
+		playbackEngine = new PlaybackEngine(soundController, engineListener);
+		playbackEngine.start();
+
+		setInputDevice(null);
 
-		soundController = new SoundController(this.pianoActivity.getApplicationContext());
+		initOptions();
+	}
+
+	/**
+	 * stops the playing and the playback engine, the manager can't be used afterwards
+	 */
+	public void release() {
+		timer.removeCallbacks(startPlaying);
+		if (latencyCalibration != null) {
+			latencyCalibration.cancel();
+		}
+		playbackEngine.quit();
+		soundController.release();
 	}
 
 	private void initOptions() {
@@ -98,21 +129,26 @@ public class PianoManager {
 		loopMarks = new Vector<Double>();
 
 		pianoRollView.update();
-		pianoKeyboardView.shadeKeys(new HashMap<Integer, Integer>());
+		pianoKeyboardView.clearShading();
 	}
 
 	private void setDisplayedKeys(boolean showFullKeyboard) {
 		int min = 21;
 		int max = 108;
-		if (!showFullKeyboard && midifile != null) {
-			for (MidiTrack track : midifile.getTracks()) {
-				for (MidiNote note : track.getNotes()) {
-					if (min == 21 || min > note.getNumber()) {
-						min = note.getNumber();
-					}
-					if (max == 108 || max < note.getNumber()) {
-						max = note.getNumber();
-					}
+		if (midifile != null) {
+			NoteTable noteTable = midifile.getNoteTable();
+			int songMin = 127;
+			int songMax = 0;
+			for (int note = 0; note < noteTable.size(); note++) {
+				songMin = Math.min(songMin, noteTable.getNumber(note));
+				songMax = Math.max(songMax, noteTable.getNumber(note));
+			}
+			if (songMin <= songMax) {
+				// the samples of the song are loaded first
+				soundController.setPriorityRange(songMin, songMax);
+				if (!showFullKeyboard) {
+					min = songMin;
+					max = songMax;
 				}
 			}
 		}
@@ -120,6 +156,26 @@ public class PianoManager {
 		pianoKeyboardView.setDisplayedKeys(min, max);
 	}
 
+	/**
+	 * @return true if the samples of the notes in the first measures from the given pulse time are loaded
+	 */
+	private boolean isLoadedFrom(double pulseTime) {
+		if (midifile == null) {
+			return true;
+		}
+		NoteTable noteTable = midifile.getNoteTable();
+		double toPulseTime = pulseTime + START_MEASURES * midifile.getTime().getMeasure();
+		int low = 127;
+		int high = 0;
+		for (int note = noteTable.FirstNoteSoundingAt(pulseTime); note < noteTable.size()
+				&& noteTable.getStartTime(note) < toPulseTime; note++) {
+			low = Math.min(low, noteTable.getNumber(note));
+			high = Math.max(high, noteTable.getNumber(note));
+		}
+		// a sample which failed to load won't ever play, so it doesn't hold the song back
+		return soundController.isFinished(low, high);
+	}
+
 	/**
 	 * sets currentPulseTime to the previous loop mark or the beginning of the song
 	 */
@@ -130,7 +186,7 @@ public class PianoManager {
 		}
 		// start the search 100 msec before the current pulse
 		Collections.sort(loopMarks);
-		int position = Collections.binarySearch(loopMarks, getCurrentPulseTime() - 100 * pulsesPerMsec);
+		int position = Collections.binarySearch(loopMarks, pulseTimeAfter(getCurrentPulseTime(), -100));
 		// if position is negative the position contains the -index-1 where the
 		// element would be found
 		if (position < 0) {
@@ -155,7 +211,7 @@ public class PianoManager {
 		}
 		Collections.sort(loopMarks);
 		// start the search 100 msec after the current pulse
-		int position = Collections.binarySearch(loopMarks, getCurrentPulseTime() + 100 * pulsesPerMsec);
+		int position = Collections.binarySearch(loopMarks, pulseTimeAfter(getCurrentPulseTime(), 100));
 		if (position < 0) {
 			position = -position - 1;
 			if (position > loopMarks.size() - 1) {
@@ -168,152 +224,155 @@ public class PianoManager {
 		setCurrentPulseTime(loopMarks.get(position));
 	}
 
-	Map<Integer, Integer> keyColors;
-
-	// called whenever the player pressed or released a key on the MIDI device
-	public void pianoKeyPress(int midiNote, int velocity) {
-		if (pianoPlaying != null) {
-			// update the playing
-			pianoPlaying.newNote(midiNote, velocity, (int) (currentPulseTime + (SystemClock.uptimeMillis() - startTime)
-					* pulsesPerMsec));
-			updatePlaying(midiNote, velocity);
+	/**
+	 * called whenever the player pressed or released a key on the MIDI device, from the MIDI driver thread. The key is
+	 * only queued for the playback engine, so the driver never waits for the matching or the views.
+	 *
+	 * @param velocity
+	 *            the velocity of the pressed key, or 0 or less if the key was released
+	 * @param time
+	 *            the time (nsec of {@link PlaybackClock#now()}) the driver received the key, it is compensated by the
+	 *            latency of the input device
+	 */
+	public void pianoKeyPress(int midiNote, int velocity, long time) {
+		time -= inputLatency;
+		if (velocity > 0) {
+			playbackEngine.offerInput(time, MidiInputQueue.NOTE_ON, midiNote, velocity);
+		} else {
+			playbackEngine.offerInput(time, MidiInputQueue.NOTE_OFF, midiNote, 0);
 		}
+	}
 
-		// TODO
-		if (keyColors == null) {
-			keyColors = new HashMap<Integer, Integer>();
+	// called on the playback engine thread for every key event of the player
+	private void keyEvent(int midiNote, int velocity, long time, double pulseTime) {
+		LatencyCalibration latencyCalibration = this.latencyCalibration;
+		if (latencyCalibration != null && latencyCalibration.isRunning()) {
+			// measure the uncompensated time
+			if (velocity > 0) {
+				latencyCalibration.keyPressed(time + inputLatency);
+			}
+			return;
 		}
-		if (velocity > 0 && !keyColors.containsKey(midiNote)) {
-			keyColors.put(midiNote, Color.GREEN);
-		} else if (velocity == 0 && keyColors.containsKey(midiNote)) {
-			keyColors.remove(midiNote);
+
+		PianoPlaying pianoPlaying = this.pianoPlaying;
+		if (pianoPlaying != null) {
+			// update the playing
+			pianoPlaying.newNote(midiNote, velocity, (int) pulseTime);
+			updatePlaying(pianoPlaying, midiNote, velocity, pulseTime);
 		}
-		pianoKeyboardView.shadeKeys(keyColors);
 	}
 
-	private void updatePlaying(int midiNote, int velocity) {
+	private void updatePlaying(PianoPlaying pianoPlaying, int midiNote, int velocity, double pulseTime) {
 		if (velocity > 0) {
-			// search for the notes which should get played next
-			for (MidiTrack track : midifile.getTracks()) {
-				int pulseTimeForNextNote = midifile.EndTime();
-				for (MidiNote note : track.getNotes()) {
-					if (note.getNumber() == midiNote && note.getStartTime() < currentPulseTime
-							&& note.getStartTime() + note.getDuration() > currentPulseTime
-							&& !pianoPlaying.wasNotePlayed(note)) {
-						Log.d("manager", "yeah " + midiNote);
-						pianoPlaying.correctNotePlayed(note);
-						return;
-					}
-					if (note.getStartTime() > currentPulseTime && note.getStartTime() < pulseTimeForNextNote) {
-						pulseTimeForNextNote = note.getStartTime();
-					}
-				}
-				for (MidiNote note : track.getNotes()) {
-					if (note.getNumber() == midiNote && !pianoPlaying.wasNotePlayed(note)
-							&& note.getStartTime() == pulseTimeForNextNote) {
-						pianoPlaying.correctNotePlayed(note);
-						Log.d("manager", "yeah2 " + midiNote);
-						return;
-					}
-				}
+			// match the key to the next unplayed note of its pitch
+			ScoreFollower scoreFollower = this.scoreFollower;
+			int note = scoreFollower != null ? scoreFollower.match(midiNote, pulseTime) : -1;
+			if (note >= 0) {
+				Log.d("manager", "yeah " + midiNote);
+				pianoPlaying.correctNotePlayed(note);
+				playbackEngine.notePlayed();
+			} else {
+				Log.d("manager", "no " + midiNote);
 			}
-			Log.d("manager", "no " + midiNote);
 		}
 	}
 
 	/**
-	 * The callback for the timer. If the midi is still playing, update the currentPulseTime and shade the sheet music. If a stop or pause has been initiated
-	 * (by someone clicking the stop or pause button), then stop the timer.
+	 * Receives the changes of the playback engine on the engine thread and hands them over to the UI thread. Position
+	 * changes are coalesced, so a slow frame never queues up more than one update. The key events of the player are
+	 * matched right on the engine thread.
 	 */
-	Runnable TimerCallback = new Runnable() {
-		public void run() {
-			if (midifile == null || pianoRollView == null) {
-				setPlayState(PlayState.STOP);
-				return;
-			} else if (playState == PlayState.STOP) {
-				return;
-			} else if (playState == PlayState.PAUSE) {
-				return;
-			} else if (playState == PlayState.WAIT) {
-				boolean continuePlaying = true;
-				for (MidiNote note : lastChord) {
-					if (!pianoPlaying.wasNotePlayed(note)) {
-						continuePlaying = false;
-					}
-				}
-				if (continuePlaying) {
-					Log.d("manager", "continue");
-					startTime = SystemClock.uptimeMillis();
-					playState = PlayState.PLAY;
-				}
-				timer.postDelayed(TimerCallback, 20);
-			} else if (playState == PlayState.PLAY) {
-				long currentTime = SystemClock.uptimeMillis();
-				currentPulseTime += (currentTime - startTime) * pulsesPerMsec;
-				startTime = currentTime;
-
-				/* Stop if we've reached the end of the song */
-				if (currentPulseTime > midifile.getTotalPulses()) {
-					setPlayState(PlayState.STOP);
-					return;
-				}
+	private PlaybackEngine.Listener engineListener = new PlaybackEngine.Listener() {
+		@Override
+		public void onPositionChanged(double pulseTime) {
+			if (!positionChangePosted) {
+				positionChangePosted = true;
+				timer.post(positionChanged);
+			}
+		}
 
-				// search for the notes which are currently played
-				ArrayList<MidiNote> newChord = new ArrayList<MidiNote>();
-				for (MidiTrack track : midifile.getTracks()) {
-					for (MidiNote note : track.getNotes()) {
-						if (note.getStartTime() < currentPulseTime
-								&& note.getStartTime() + note.getDuration() > currentPulseTime) {
-							newChord.add(note);
+		@Override
+		public void onPlayStateChanged(final PlayState newPlayState) {
+			timer.post(new Runnable() {
+				public void run() {
+					// only follow the engine if the player didn't pause or stop in between
+					if (playState == PlayState.PLAY || playState == PlayState.WAIT) {
+						Log.d("manager", "engine " + newPlayState);
+						if (newPlayState == PlayState.STOP) {
+							pianoActivity.getWindow().clearFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
 						}
+						playState = newPlayState;
 					}
 				}
+			});
+		}
 
-				// check the corresponding played notes by the player
-				// TODO
-				switch (playMode) {
-				case LISTEN:
-					break;
-				case PLAY_ALONG:
-					break;
-				case FOLLOW_YOU:
-				case RYTHM_TAP:
-					for (MidiNote midiNote : newChord) {
-						if (!pianoPlaying.wasNotePlayed(midiNote)) {
-							playState = PlayState.WAIT;
-						}
-					}
-					break;
-				default:
-					break;
-				}
+		@Override
+		public void onKeyEvent(int midiNote, int velocity, long time, double pulseTime) {
+			keyEvent(midiNote, velocity, time, pulseTime);
+		}
 
-				// stop the audio for notes which are no longer played
-				for (MidiNote note : lastChord) {
-					if (!newChord.contains(note)) {
-						soundController.stop(note.getNumber());
-					}
-				}
-				// start the audio for new notes
-				for (MidiNote note : newChord) {
-					if (!lastChord.contains(note)) {
-						soundController.play(note.getNumber(), 127);
-					}
-				}
+		@Override
+		public void onKeyStatesChanged() {
+			if (!keyStatesChangePosted) {
+				keyStatesChangePosted = true;
+				timer.post(keyStatesChanged);
+			}
+		}
+	};
 
-				lastChord = newChord;
+	/**
+	 * Shows the latest key states of the playback engine on the keyboard.
+	 */
+	Runnable keyStatesChanged = new Runnable() {
+		public void run() {
+			keyStatesChangePosted = false;
+			pianoKeyboardView.updateKeyStates(playbackEngine.getKeyStates());
+		}
+	};
 
-				// update the keyboard with the played notes
-				Map<Integer, Integer> keyColors = new HashMap<Integer, Integer>();
-				for (MidiNote note : newChord) {
-					keyColors.put(note.getNumber(), Color.RED);
-				}
-				pianoKeyboardView.shadeKeys(keyColors);
-				pianoRollView.update();
+	/**
+	 * Updates the roll to the latest position of the playback engine.
+	 */
+	Runnable positionChanged = new Runnable() {
+		public void run() {
+			positionChangePosted = false;
+			if (midifile == null || pianoRollView == null) {
+				return;
+			}
+			currentPulseTime = playbackEngine.getPulseTime();
+			pianoRollView.update();
+		}
+	};
 
-				timer.postDelayed(TimerCallback, 20);
+	/**
+	 * Starts the playback engine after the delay the player gets to prepare.
+	 */
+	Runnable startPlaying = new Runnable() {
+		public void run() {
+			// only the samples of the first measures have to be loaded
+			if (!isLoadedFrom(currentPulseTime)) {
+				timer.postDelayed(this, LOAD_CHECK_INTERVAL);
 				return;
 			}
+			playbackEngine.play();
+		}
+	};
+
+	/**
+	 * Shows the progress of the sample loading.
+	 */
+	private SampleLoader.Listener loadListener = new SampleLoader.Listener() {
+		public void onLoadProgress(final int loaded, final int failed, final int total) {
+			timer.post(new Runnable() {
+				public void run() {
+					pianoActivity.setProgressBarVisibility(loaded + failed < total);
+					pianoActivity.setProgress(Window.PROGRESS_END * (loaded + failed) / total);
+				}
+			});
+			if (loaded + failed == total && failed > 0) {
+				Log.w("manager", failed + " of " + total + " samples could not be loaded");
+			}
 		}
 	};
 
@@ -344,6 +403,7 @@ public class PianoManager {
 	 */
 	public void setPlayMode(PlayMode playMode) {
 		this.playMode = playMode;
+		playbackEngine.setPlayMode(playMode);
 		this.pianoActivity.setPlayMode(playMode);
 	}
 
@@ -364,26 +424,30 @@ public class PianoManager {
 			case PLAY:
 				pianoActivity.getWindow().addFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
 
-				pianoPlaying = new PianoPlaying(this, currentPulseTime);
-
-				timer.removeCallbacks(TimerCallback);
-				timer.postDelayed(new Runnable() {
-					public void run() {
-						startTime = SystemClock.uptimeMillis();
-
-						timer.removeCallbacks(TimerCallback);
-						timer.postDelayed(TimerCallback, 100);
-
-						return;
+				// the key events are matched while the engine holds its lock, so the new playing and the rewound score
+				// follower are installed together
+				synchronized (playbackEngine) {
+					pianoPlaying = new PianoPlaying(this, currentPulseTime);
+					playbackEngine.setPianoPlaying(pianoPlaying);
+					if (scoreFollower != null) {
+						// the notes matched before the pause or stop can be played again
+						scoreFollower.seek(currentPulseTime);
 					}
-				}, 1000);
+				}
+
+				timer.removeCallbacks(startPlaying);
+				timer.postDelayed(startPlaying, 1000);
 				break;
 			case PAUSE:
 				Log.d("manager", "pause");
 				pianoActivity.getWindow().clearFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
+				timer.removeCallbacks(startPlaying);
+				playbackEngine.pause();
 				break;
 			case STOP:
 				pianoActivity.getWindow().clearFlags(WindowManager.LayoutParams.FLAG_KEEP_SCREEN_ON);
+				timer.removeCallbacks(startPlaying);
+				playbackEngine.stop();
 				break;
 			default:
 				break;
@@ -415,6 +479,52 @@ public class PianoManager {
 		return playSpeed;
 	}
 
+	/**
+	 * sets the MIDI device the player plays on and loads its calibrated latency
+	 *
+	 * @param usbDevice
+	 *            the device, or null if none is attached
+	 */
+	public void setInputDevice(UsbDevice usbDevice) {
+		if (usbDevice == null) {
+			inputDeviceKey = "default";
+		} else {
+			inputDeviceKey = usbDevice.getVendorId() + ":" + usbDevice.getProductId();
+		}
+		SharedPreferences settings = pianoActivity.getSharedPreferences("climprpiano.latency", 0);
+		inputLatency = settings.getLong(inputDeviceKey, 0);
+	}
+
+	/**
+	 * stops the playing and starts measuring the latency of the current input device, the player has to press any key
+	 * along with the clicks
+	 */
+	public void startLatencyCalibration() {
+		setPlayState(PlayState.STOP);
+		if (latencyCalibration != null) {
+			latencyCalibration.cancel();
+		}
+		latencyCalibration = new LatencyCalibration(soundController, timer, new LatencyCalibration.Listener() {
+			@Override
+			public void onCalibrationFinished(boolean success, long latency) {
+				latencyCalibration = null;
+				if (!success) {
+					Toast.makeText(pianoActivity, R.string.calibration_failed, Toast.LENGTH_LONG).show();
+					return;
+				}
+				inputLatency = Math.max(0, latency);
+				SharedPreferences settings = pianoActivity.getSharedPreferences("climprpiano.latency", 0);
+				SharedPreferences.Editor editor = settings.edit();
+				editor.putLong(inputDeviceKey, inputLatency);
+				editor.commit();
+				Toast.makeText(pianoActivity,
+						pianoActivity.getString(R.string.calibration_done, inputLatency / 1000000),
+						Toast.LENGTH_LONG).show();
+			}
+		});
+		latencyCalibration.start();
+	}
+
 	/**
 	 * @param playSpeed
 	 *            the playSpeed to set
@@ -422,12 +532,22 @@ public class PianoManager {
 	public void setPlaySpeed(double playSpeed) {
 		this.playSpeed = playSpeed;
 		this.pianoActivity.setPlaySpeed(playSpeed);
+		playbackEngine.setPlaySpeed(playSpeed);
+		if (scoreFollower != null) {
+			scoreFollower.setPlaySpeed(playSpeed);
+		}
+	}
 
-		if (midifile != null) {
-			double inverse_tempo = 1.0 / midifile.getTime().getTempo();
-			double inverse_tempo_scaled = inverse_tempo * playSpeed;
-			pulsesPerMsec = midifile.getTime().getQuarter() * (1000.0 * inverse_tempo_scaled);
+	/**
+	 * @return the pulse time reached after playing the given milliseconds from pulseTime with the current playSpeed,
+	 *         following the tempo changes of the song
+	 */
+	private double pulseTimeAfter(double pulseTime, double msec) {
+		if (midifile == null) {
+			return pulseTime;
 		}
+		TempoMap tempoMap = midifile.getTempoMap();
+		return tempoMap.MsecToPulse(tempoMap.PulseToMsec(pulseTime) + msec * playSpeed);
 	}
 
 	/**
@@ -444,6 +564,10 @@ public class PianoManager {
 	public void setCurrentPulseTime(double currentPulseTime) {
 		if (midifile != null) {
 			this.currentPulseTime = Math.max(0, Math.min(currentPulseTime, midifile.getTotalPulses()));
+			if (scoreFollower != null) {
+				scoreFollower.seek(this.currentPulseTime);
+			}
+			playbackEngine.seek(this.currentPulseTime);
 			if (pianoRollView != null) {
 				pianoRollView.update();
 			}
@@ -461,11 +585,13 @@ public class PianoManager {
 
 		this.fileUri = fileUri;
 
-		byte[] data;
+		ByteBuffer data;
 		try {
-			data = fileUri.getData(pianoActivity);
+			data = fileUri.getBuffer(pianoActivity);
 			//Log.d("load", data.toString().substring(0, 20));
 			midifile = new MidiFile(data, fileUri.getUri().getLastPathSegment());
+			scoreFollower = new ScoreFollower(midifile.getNoteTable(), midifile.getTempoMap());
+			playbackEngine.setSong(midifile);
 			initOptions();
 		} catch (MidiFileException e) {
 		}
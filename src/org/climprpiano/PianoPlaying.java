@@ -5,58 +5,117 @@ import java.util.Vector;
 
 import com.midisheetmusic.MidiNote;
 
+/**
+ * The playing of the player since the song was started. The notes of the song which were played correctly are kept in
+ * a bitset by their note table index. The keys the player pressed are written to a compact log of primitive arrays,
+ * with an open slot per pitch for pairing the key release with its press. The log keeps the most recent
+ * MAX_LOG_SIZE notes, so the memory of a long practice session is bounded.
+ */
 public class PianoPlaying {
 
-	private PianoManager pianoManager;
+	public static final int MAX_LOG_SIZE = 1 << 16; // the number of played notes the log keeps at most
 
-	private Vector<MidiNote> playedNotes; // the notes which were played with the start and end exactly to the piano player
+	private PianoManager pianoManager;
 
 	private double startPulse; // the time of the song when the playing started
 
-	private Vector<MidiNote> correctNotes; // notes which were played correctly by the player
+	private long[] correctNotes; // a bitset of the note table indices of the notes which were played correctly
+
+	// the log of the played notes, a ring buffer of parallel arrays
+	private int[] logStartTimes = new int[64]; // the pulse time the key was pressed
+	private int[] logEndTimes = new int[64]; // the pulse time the key was released, or -1 while it is held
+	private byte[] logNumbers = new byte[64]; // the pitch of the key
+	private int logCount; // the number of notes ever played, the newest note is at (logCount - 1) % MAX_LOG_SIZE
+
+	private int[] openNotes = new int[128]; // for each pitch the log entry of the held key, or -1
 
 	public PianoPlaying(PianoManager pianoManager, double currentPulseTime) {
 		this.pianoManager = pianoManager;
-		playedNotes = new Vector<MidiNote>();
 		startPulse = currentPulseTime;
-		correctNotes = new Vector<MidiNote>();
+		correctNotes = new long[16];
+		for (int pitch = 0; pitch < 128; pitch++) {
+			openNotes[pitch] = -1;
+		}
 	}
 
 	public void newNote(int midiNote, int velocity, int pulseTime) {
+		if (midiNote < 0 || midiNote > 127) {
+			return;
+		}
 		if (velocity > 0) {
-			playedNotes.add(new MidiNote(pulseTime, 0, midiNote, 0));
+			int entry = addLogEntry();
+			logStartTimes[entry] = pulseTime;
+			logEndTimes[entry] = -1;
+			logNumbers[entry] = (byte) midiNote;
+			openNotes[midiNote] = entry;
 		} else if (velocity == 0) {
-			MidiNote lastNumberNote = null;
-			for (MidiNote playedNote : playedNotes) {
-				// look for played notes on the given channel
-				if (playedNote.getNumber() == midiNote) {
-					// look if it is the most recent played note
-					if (lastNumberNote == null || playedNote.getStartTime() > lastNumberNote.getStartTime()) {
-						lastNumberNote = playedNote;
-					}
-				}
-			}
-			if (lastNumberNote != null) {
-				lastNumberNote.NoteOff(pulseTime);
+			int entry = openNotes[midiNote];
+			if (entry >= 0) {
+				logEndTimes[entry] = pulseTime;
+				openNotes[midiNote] = -1;
 			}
 		}
 	}
 
+	// reserves the log entry of the next played note, overwriting the oldest one once the log is full
+	private int addLogEntry() {
+		int entry = logCount % MAX_LOG_SIZE;
+		if (entry == logStartTimes.length) {
+			int size = Math.min(MAX_LOG_SIZE, logStartTimes.length * 2);
+			int[] newStartTimes = new int[size];
+			int[] newEndTimes = new int[size];
+			byte[] newNumbers = new byte[size];
+			System.arraycopy(logStartTimes, 0, newStartTimes, 0, entry);
+			System.arraycopy(logEndTimes, 0, newEndTimes, 0, entry);
+			System.arraycopy(logNumbers, 0, newNumbers, 0, entry);
+			logStartTimes = newStartTimes;
+			logEndTimes = newEndTimes;
+			logNumbers = newNumbers;
+		} else if (logCount >= MAX_LOG_SIZE && logEndTimes[entry] == -1 && openNotes[logNumbers[entry]] == entry) {
+			// the overwritten key is still held, forget about it, unless a newer entry of the pitch is the open one
+			openNotes[logNumbers[entry]] = -1;
+		}
+		logCount++;
+		return entry;
+	}
+
 	public List<MidiNote> getCurrentPlayedNotes() {
 		Vector<MidiNote> ret = new Vector<MidiNote>();
-		for (MidiNote playedNote : playedNotes) {
-			if (playedNote.getDuration() == 0) {
-				ret.add(playedNote);
+		for (int pitch = 0; pitch < 128; pitch++) {
+			int entry = openNotes[pitch];
+			if (entry >= 0) {
+				ret.add(new MidiNote(logStartTimes[entry], 0, pitch, 0));
 			}
 		}
 		return ret;
 	}
 
-	public boolean wasNotePlayed(MidiNote midiNote) {
-		return correctNotes.contains(midiNote);
+	/**
+	 * @return the number of played notes which are kept in the log
+	 */
+	public int getLogSize() {
+		return Math.min(logCount, MAX_LOG_SIZE);
+	}
+
+	/**
+	 * @return the total number of notes played since the playing started
+	 */
+	public int getPlayedNotesCount() {
+		return logCount;
 	}
 
-	public void correctNotePlayed(MidiNote note) {
-		correctNotes.add(note);
+	public synchronized boolean wasNotePlayed(int note) {
+		int word = note >> 6;
+		return word < correctNotes.length && (correctNotes[word] & (1L << note)) != 0;
+	}
+
+	public synchronized void correctNotePlayed(int note) {
+		int word = note >> 6;
+		if (word >= correctNotes.length) {
+			long[] newCorrectNotes = new long[Math.max(word + 1, correctNotes.length * 2)];
+			System.arraycopy(correctNotes, 0, newCorrectNotes, 0, correctNotes.length);
+			correctNotes = newCorrectNotes;
+		}
+		correctNotes[word] |= 1L << note;
 	}
 }
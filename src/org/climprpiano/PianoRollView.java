@@ -9,6 +9,8 @@ import android.graphics.Color;
 import android.graphics.Paint;
 import android.graphics.drawable.NinePatchDrawable;
 import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
 import android.util.AttributeSet;
 import android.view.MotionEvent;
 import android.view.SurfaceHolder;
@@ -17,10 +19,13 @@ import android.view.View;
 import android.view.View.OnTouchListener;
 import android.view.animation.AnimationUtils;
 
-import com.midisheetmusic.MidiNote;
-import com.midisheetmusic.MidiTrack;
+import org.climprpiano.util.FramePacer;
 
-public class PianoRollView extends SurfaceView implements SurfaceHolder.Callback, OnTouchListener {
+import com.midisheetmusic.MidiFile;
+import com.midisheetmusic.NoteTable;
+
+public class PianoRollView extends SurfaceView implements SurfaceHolder.Callback, OnTouchListener,
+		RollTileCache.TileRenderer {
 	private PianoManager pianoManager;
 
 	private Paint paint;
@@ -39,6 +44,48 @@ public class PianoRollView extends SurfaceView implements SurfaceHolder.Callback
 
 	private NinePatchDrawable[] noteBars;
 
+	/** The values a frame is drawn from, taken on the UI thread so the render thread never reads the live state */
+	private static class Frame {
+		double pulseTime;
+		double pixelsPerPulse;
+		int width;
+		int height;
+		int keyOffset;
+		int[][] keyPositions;
+		NoteTable noteTable;
+		int measure; // the length of a measure (pulses)
+		double[] loopMarks = new double[8];
+		int numLoopMarks;
+
+		void set(Frame frame) {
+			pulseTime = frame.pulseTime;
+			pixelsPerPulse = frame.pixelsPerPulse;
+			width = frame.width;
+			height = frame.height;
+			keyOffset = frame.keyOffset;
+			keyPositions = frame.keyPositions;
+			noteTable = frame.noteTable;
+			measure = frame.measure;
+			if (loopMarks.length < frame.numLoopMarks) {
+				loopMarks = new double[frame.loopMarks.length];
+			}
+			System.arraycopy(frame.loopMarks, 0, loopMarks, 0, frame.numLoopMarks);
+			numLoopMarks = frame.numLoopMarks;
+		}
+	}
+
+	// the render thread, it draws at most once per display frame from the latest snapshot
+	private HandlerThread renderThread;
+	private Handler renderHandler;
+	private FramePacer framePacer;
+	private final Object renderLock = new Object(); // guards nextFrame, frameRequested and the surface
+	private Frame nextFrame = new Frame(); // the snapshot of the latest update
+	private Frame frame = new Frame(); // the snapshot being drawn, only used on the render thread
+	private boolean frameRequested; // true while a frame is requested from the render thread
+	private RollTileCache tileCache = new RollTileCache(this); // the drawn content, only used on the render thread
+	private double lastPixelsPerPulse; // the zoom of the last frame, only used on the render thread
+	private Handler drawHandler; // the handler of the render thread drawing the frame, only used on the render thread
+
 	private int startMotionY;
 	/** The y pixel when a touch motion starts */
 	private float deltaY;
@@ -93,7 +140,7 @@ public class PianoRollView extends SurfaceView implements SurfaceHolder.Callback
 
 		setMeasuredDimension(width, height);
 		this.invalidate();
-		draw();
+		update();
 	}
 
 	// sets the shown keys keyboard by a start and end midi note
@@ -114,15 +161,77 @@ public class PianoRollView extends SurfaceView implements SurfaceHolder.Callback
 		keyPositions = PianoKeyboardView.calculateKeyPositions(width, keyOffset, numKeys);
 	}
 
+	/**
+	 * requests a redraw with the current position and zoom, called on the UI thread. Any number of requests within a
+	 * display frame are drawn once.
+	 */
 	public void update() {
-		draw();
+		synchronized (renderLock) {
+			takeSnapshot(nextFrame);
+			if (!frameRequested && renderHandler != null) {
+				frameRequested = true;
+				renderHandler.post(requestFrame);
+			}
+		}
 	}
 
-	/** Obtain the drawing canvas and call onDraw() */
-	private void draw() {
-		if (!surfaceReady) {
+	// copies the state the roll is drawn from into the given frame
+	private void takeSnapshot(Frame frame) {
+		frame.pixelsPerPulse = pixelsPerPulse;
+		frame.width = width;
+		frame.height = height;
+		frame.keyOffset = keyOffset;
+		frame.keyPositions = keyPositions;
+		frame.noteTable = null;
+		frame.numLoopMarks = 0;
+		MidiFile midifile = pianoManager != null ? pianoManager.getMidifile() : null;
+		if (midifile == null) {
 			return;
 		}
+		frame.pulseTime = pianoManager.getCurrentPulseTime();
+		frame.noteTable = midifile.getNoteTable();
+		frame.measure = midifile.getTime().getMeasure();
+		List<Double> loopMarks = pianoManager.getLoopMarks();
+		if (loopMarks != null) {
+			if (frame.loopMarks.length < loopMarks.size()) {
+				frame.loopMarks = new double[loopMarks.size() * 2];
+			}
+			// indexed, so no iterator is allocated per frame
+			for (int i = 0; i < loopMarks.size(); i++) {
+				frame.loopMarks[frame.numLoopMarks++] = loopMarks.get(i);
+			}
+		}
+	}
+
+	// asks the frame pacer for the next frame, on the render thread
+	private Runnable requestFrame = new Runnable() {
+		public void run() {
+			framePacer.requestFrame();
+		}
+	};
+
+	// draws the latest snapshot, on the render thread
+	private Runnable drawFrame = new Runnable() {
+		public void run() {
+			synchronized (renderLock) {
+				frameRequested = false;
+				frame.set(nextFrame);
+			}
+			draw();
+		}
+	};
+
+	/** Obtain the drawing canvas and call doDraw(), on the render thread */
+	private void draw() {
+		// surfaceDestroyed() joins the render thread before it returns, so once the surface is ready it stays valid
+		// until this frame is posted
+		synchronized (renderLock) {
+			if (!surfaceReady) {
+				return;
+			}
+			// surfaceDestroyed() clears renderHandler on the UI thread, so the frame keeps its own reference
+			drawHandler = renderHandler;
+		}
 		SurfaceHolder holder = getHolder();
 		Canvas canvas = holder.lockCanvas();
 		if (canvas == null) {
@@ -132,24 +241,79 @@ public class PianoRollView extends SurfaceView implements SurfaceHolder.Callback
 		holder.unlockCanvasAndPost(canvas);
 	}
 
-	/** Draw the Roll. */
+	/** Draw the Roll from the snapshot in frame. */
 	protected void doDraw(Canvas canvas) {
-		if (!surfaceReady || keyPositions == null) {
+		int width = frame.width;
+		int height = frame.height;
+		double pixelsPerPulse = frame.pixelsPerPulse;
+		double pulseTime = frame.pulseTime;
+		if (frame.keyPositions == null) {
+			return;
+		}
+		if (frame.noteTable == null) {
+			paint.setStyle(Paint.Style.FILL);
+			paint.setColor(Color.rgb(25, 25, 25));
+			canvas.drawRect(0, 0, width, height, paint);
 			return;
 		}
 
+		// while zooming every frame has another scale, so the tiles are only used once the zoom stays the same
+		boolean zooming = pixelsPerPulse != lastPixelsPerPulse;
+		lastPixelsPerPulse = pixelsPerPulse;
+		if (!zooming && tileCache.validate(pixelsPerPulse, width, height, frame.keyPositions, frame.noteTable,
+				frame.measure)) {
+			tileCache.draw(canvas, pulseTime, height);
+			if (tileCache.needsPrefetch(pulseTime, height)) {
+				drawHandler.post(prefetchTile);
+			}
+		} else {
+			drawContent(canvas, pulseTime, pulseTime + height / pixelsPerPulse, height);
+		}
+
+		// draw horizontal red lines at the position of each loop mark
+		paint.setStyle(Paint.Style.STROKE);
+		for (int i = 0; i < frame.numLoopMarks; i++) {
+			double loopMark = height - (frame.loopMarks[i] - pulseTime) * pixelsPerPulse;
+			if (loopMark > 0 && loopMark < height) {
+				paint.setColor(Color.rgb(150, 0, 0));
+				canvas.drawLine(0, (int) loopMark, width, (int) loopMark, paint);
+				paint.setColor(Color.rgb(170, 20, 20));
+				canvas.drawLine(0, (int) loopMark + 1, width, (int) loopMark + 1, paint);
+			}
+		}
+	}
+
+	// draws the tile above the visible ones after the frame, on the render thread
+	private Runnable prefetchTile = new Runnable() {
+		public void run() {
+			if (frame.noteTable != null
+					&& tileCache.validate(frame.pixelsPerPulse, frame.width, frame.height, frame.keyPositions,
+							frame.noteTable, frame.measure) && tileCache.needsPrefetch(frame.pulseTime, frame.height)) {
+				tileCache.prefetch(frame.pulseTime, frame.height);
+			}
+		}
+	};
+
+	/**
+	 * Draws the background, the measure and key lines and the note bars of the frame from fromPulseTime at the bottom
+	 * to toPulseTime at the top of the canvas, either into a tile or straight onto the roll.
+	 */
+	@Override
+	public void drawContent(Canvas canvas, double fromPulseTime, double toPulseTime, int height) {
+		int width = frame.width;
+		int[][] keyPositions = frame.keyPositions;
+		double pixelsPerPulse = frame.pixelsPerPulse;
+
 		paint.setStyle(Paint.Style.FILL);
 		paint.setColor(Color.rgb(25, 25, 25));
 		canvas.drawRect(0, 0, width, height, paint);
 
 		// draw horizontal grey lines at the position of each measure
 		paint.setStyle(Paint.Style.STROKE);
-		for (double i = (height + pianoManager.getCurrentPulseTime() * pixelsPerPulse)
-				% (pianoManager.getMidifile().getTime().getMeasure() * pixelsPerPulse); i < height; i += pianoManager
-				.getMidifile().getTime().getMeasure()
-				* pixelsPerPulse) {
-			paint.setColor(Color.rgb(40, 40, 40));
-			canvas.drawLine(0, (int) i, width, (int) i, paint);
+		paint.setColor(Color.rgb(40, 40, 40));
+		for (long i = (long) Math.ceil(fromPulseTime / frame.measure); i * frame.measure <= toPulseTime; i++) {
+			int y = (int) ((toPulseTime - i * frame.measure) * pixelsPerPulse);
+			canvas.drawLine(0, y, width, y, paint);
 		}
 
 		// draw vertical grey lines at the position of each black key
@@ -164,36 +328,24 @@ public class PianoRollView extends SurfaceView implements SurfaceHolder.Callback
 			}
 		}
 
-		// draw horizontal red lines at the position of each loop mark
-		paint.setStyle(Paint.Style.STROKE);
-		for (double loopMark : pianoManager.getLoopMarks()) {
-			loopMark = height - (loopMark - pianoManager.getCurrentPulseTime()) * pixelsPerPulse;
-			if (loopMark > 0 && loopMark < height) {
-				paint.setColor(Color.rgb(150, 0, 0));
-				canvas.drawLine(0, (int) loopMark, width, (int) loopMark, paint);
-				paint.setColor(Color.rgb(170, 20, 20));
-				canvas.drawLine(0, (int) loopMark + 1, width, (int) loopMark + 1, paint);
-			}
-		}
-
-		// draw the note bars
-		for (MidiTrack track : pianoManager.getMidifile().getTracks()) {
-			for (MidiNote note : track.getNotes()) {
-				drawNote(note, track.trackNumber(), canvas);
-			}
+		// draw the note bars, only the notes sounding between the bottom and the top are visited
+		NoteTable noteTable = frame.noteTable;
+		for (int note = noteTable.FirstNoteSoundingAt(fromPulseTime); note < noteTable.size()
+				&& noteTable.getStartTime(note) <= toPulseTime; note++) {
+			drawNote(noteTable, note, toPulseTime, height, canvas);
 		}
 	}
 
-	private void drawNote(MidiNote note, int track, Canvas canvas) {
+	private void drawNote(NoteTable noteTable, int note, double toPulseTime, int height, Canvas canvas) {
 		// calculate top and bottom position
-		int y0 = height
-				- (int) ((note.getStartTime() + note.getDuration() - pianoManager.getCurrentPulseTime()) * pixelsPerPulse);
-		int y1 = height - (int) ((note.getStartTime() - pianoManager.getCurrentPulseTime()) * pixelsPerPulse);
+		int y0 = (int) ((toPulseTime - noteTable.getEndTime(note)) * frame.pixelsPerPulse);
+		int y1 = (int) ((toPulseTime - noteTable.getStartTime(note)) * frame.pixelsPerPulse);
+		int track = noteTable.getTrack(note);
+		int[] key = frame.keyPositions[noteTable.getNumber(note) - frame.keyOffset];
 		// check if the note bar is within the canvas
 		if (y0 <= height && y1 >= 0 && track < noteBars.length) {
 			// set bounds of note bar
-			noteBars[track].setBounds(keyPositions[note.getNumber() - keyOffset][1], y0, keyPositions[note.getNumber()
-					- keyOffset][2], y1);
+			noteBars[track].setBounds(key[1], y0, key[2], y1);
 			// draw on the canvas
 			noteBars[track].draw(canvas);
 		}
@@ -322,18 +474,44 @@ public class PianoRollView extends SurfaceView implements SurfaceHolder.Callback
 	};
 
 	public void surfaceChanged(SurfaceHolder holder, int format, int width, int height) {
-		draw();
+		update();
 	}
 
-	/** Surface is ready for shading the notes */
+	/** Surface is ready for shading the notes, start the render thread */
 	public void surfaceCreated(SurfaceHolder holder) {
-		surfaceReady = true;
-		draw();
+		renderThread = new HandlerThread("PianoRollRender", Process.THREAD_PRIORITY_DISPLAY);
+		renderThread.start();
+		synchronized (renderLock) {
+			renderHandler = new Handler(renderThread.getLooper());
+			framePacer = FramePacer.getInstance(renderHandler, drawFrame);
+			surfaceReady = true;
+			frameRequested = false;
+		}
+		update();
 	}
 
-	/** Surface has been destroyed */
+	/** Surface has been destroyed, stop the render thread */
 	public void surfaceDestroyed(SurfaceHolder holder) {
-		surfaceReady = false;
+		synchronized (renderLock) {
+			surfaceReady = false;
+			renderHandler = null;
+		}
+		renderThread.quit();
+		try {
+			// the surface must not be drawn on after this returns
+			renderThread.join();
+		} catch (InterruptedException e) {
+		}
+		renderThread = null;
+		tileCache.clear();
+	}
+
+	/**
+	 * @param memoryBudget
+	 *            the memory (bytes) the cached tiles of the roll may use
+	 */
+	public void setTileCacheBudget(int memoryBudget) {
+		tileCache.setMemoryBudget(memoryBudget);
 	}
 
 	/**
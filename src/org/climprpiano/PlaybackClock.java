@@ -0,0 +1,147 @@
+package org.climprpiano;
+
+import com.midisheetmusic.TempoMap;
+
+/**
+ * The clock of the playing song. The song position is always derived from a single anchor, the monotonic time the
+ * playing (re)started and the song time at that moment, plus the tempo map of the song. So no rounding error adds up
+ * over a long piece. The anchor is only moved on an explicit seek, pause or speed change.
+ *
+ * The clock also measures its drift: for every fired note event the difference between the time it was fired and the
+ * time the clock says it was due.
+ */
+public class PlaybackClock {
+
+	private TempoMap tempoMap;
+	private double playSpeed = 1;
+	private boolean running;
+
+	private long anchorTime; // the monotonic time (nsec) of the anchor
+	private double anchorMsec; // the song time (msec, without play speed) at the anchor
+
+	// the drift instrumentation
+	private long driftCount; // the number of measured events
+	private double totalDrift; // the sum of all measured drifts (msec)
+	private double maxDrift; // the largest absolute measured drift (msec)
+
+	public PlaybackClock(TempoMap tempoMap) {
+		this.tempoMap = tempoMap;
+	}
+
+	/**
+	 * @return the current monotonic time (nsec) used by the clock
+	 */
+	public static long now() {
+		return System.nanoTime();
+	}
+
+	/**
+	 * starts the clock at the given time from the current position
+	 */
+	public void start(long time) {
+		anchorTime = time;
+		running = true;
+	}
+
+	/**
+	 * stops the clock at the position reached at the given time
+	 */
+	public void pause(long time) {
+		anchorMsec = getMsec(time);
+		anchorTime = time;
+		running = false;
+	}
+
+	/**
+	 * moves the clock to the given position (pulses)
+	 */
+	public void seek(double pulseTime, long time) {
+		anchorMsec = tempoMap.PulseToMsec(pulseTime);
+		anchorTime = time;
+	}
+
+	/**
+	 * changes the speed from the given time on, the position reached so far is kept
+	 */
+	public void setPlaySpeed(double playSpeed, long time) {
+		anchorMsec = getMsec(time);
+		anchorTime = time;
+		this.playSpeed = playSpeed;
+	}
+
+	// the song time (msec, without play speed) at the given time
+	private double getMsec(long time) {
+		if (!running) {
+			return anchorMsec;
+		}
+		return anchorMsec + (time - anchorTime) / 1000000.0 * playSpeed;
+	}
+
+	/**
+	 * @return the song position (pulses) at the given time
+	 */
+	public double getPulseTime(long time) {
+		return tempoMap.MsecToPulse(getMsec(time));
+	}
+
+	/**
+	 * @return the time (nsec) the clock reaches the given song position, if it keeps running
+	 */
+	public long getTimeOfPulse(double pulseTime) {
+		return anchorTime + (long) ((tempoMap.PulseToMsec(pulseTime) - anchorMsec) / playSpeed * 1000000.0);
+	}
+
+	/**
+	 * measures the drift of an event at the given song position which was fired at the given time
+	 */
+	public void eventFired(double pulseTime, long time) {
+		double drift = (time - getTimeOfPulse(pulseTime)) / 1000000.0;
+		driftCount++;
+		totalDrift += drift;
+		maxDrift = Math.max(maxDrift, Math.abs(drift));
+	}
+
+	/**
+	 * resets the drift instrumentation
+	 */
+	public void resetDrift() {
+		driftCount = 0;
+		totalDrift = 0;
+		maxDrift = 0;
+	}
+
+	/**
+	 * @return the number of events whose drift was measured
+	 */
+	public long getDriftCount() {
+		return driftCount;
+	}
+
+	/**
+	 * @return the average drift (msec) of the fired events, positive if they were late
+	 */
+	public double getAverageDrift() {
+		return driftCount == 0 ? 0 : totalDrift / driftCount;
+	}
+
+	/**
+	 * @return the largest absolute drift (msec) of the fired events
+	 */
+	public double getMaxDrift() {
+		return maxDrift;
+	}
+
+	/**
+	 * @return true if the clock is running
+	 */
+	public boolean isRunning() {
+		return running;
+	}
+
+	/**
+	 * @return the playSpeed
+	 */
+	public double getPlaySpeed() {
+		return playSpeed;
+	}
+}
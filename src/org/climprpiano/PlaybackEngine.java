@@ -0,0 +1,508 @@
+package org.climprpiano;
+
+import org.climprpiano.PianoManager.PlayMode;
+import org.climprpiano.PianoManager.PlayState;
+import org.climprpiano.util.MidiInputQueue;
+import org.hexiano.SoundController;
+
+import java.util.concurrent.locks.LockSupport;
+
+import android.os.Process;
+
+import com.midisheetmusic.MidiFile;
+import com.midisheetmusic.NoteTable;
+import com.midisheetmusic.TempoMap;
+
+/**
+ * Plays the notes of a song on its own high priority thread. The note-on and note-off events of the next lookahead
+ * milliseconds are queued in advance and fired at their due time from a monotonic clock, so the audio timing does not
+ * depend on how long the views take to draw. The UI is only told about position and play state changes through the
+ * {@link Listener}, which is called on the engine thread.
+ */
+public class PlaybackEngine implements Runnable {
+
+	public interface Listener {
+		// called whenever the playing position moved
+		void onPositionChanged(double pulseTime);
+
+		// called when the engine changed the play state by itself, e.g. waiting for the player or the song ended
+		void onPlayStateChanged(PlayState playState);
+
+		// called for every key the player pressed (velocity > 0) or released (velocity 0) at the given time (nsec),
+		// pulseTime is the song position at that time
+		void onKeyEvent(int midiNote, int velocity, long time, double pulseTime);
+
+		// called when the engine published new key states
+		void onKeyStatesChanged();
+	}
+
+	public static final int DEFAULT_LOOKAHEAD = 100; // the default time (msec) the events are queued in advance
+	private static final int POSITION_INTERVAL = 20; // the maximum time (msec) between two position updates
+	private static final int INPUT_CAPACITY = 256; // the number of key events which can wait for the engine
+
+	private SoundController soundController;
+	private Listener listener;
+	private volatile Thread thread; // the engine thread, it sleeps parked and is woken up by unparking it
+	private boolean running;
+	private final MidiInputQueue inputQueue = new MidiInputQueue(INPUT_CAPACITY); // the key events of the player
+	private final KeyStates keyStates = new KeyStates(); // the sounding and pressed keys for the keyboard view
+	private long soundingKeysLow; // the bitset of the sounding pitches 0 to 63 in keyStates
+	private long soundingKeysHigh; // the bitset of the sounding pitches 64 to 127 in keyStates
+
+	// the song
+	private NoteTable noteTable;
+	private TempoMap tempoMap;
+	private int totalPulses;
+	private NoteIndex noteIndex; // the notes sounding at pulseTime, which the player has to play in the waiting modes
+	private PianoPlaying pianoPlaying;
+
+	// the playing state
+	private PlayState playState = PlayState.STOP;
+	private PlayMode playMode = PlayMode.NONE;
+	private double playSpeed = 1;
+	private PlaybackClock clock; // derives the song position from the time
+	private double pulseTime; // the position of the song (pulses) at the last tick
+	private int lookahead = DEFAULT_LOOKAHEAD;
+
+	// the queue of upcoming note events, a binary heap ordered by pulse time
+	private double[] eventTimes = new double[64];
+	private int[] events = new int[64]; // the note table index shifted left by one, the lowest bit set for note-on
+	private int numEvents;
+	private int nextNoteOn; // the index of the first note whose note-on is not queued yet
+
+	public PlaybackEngine(SoundController soundController, Listener listener) {
+		this.soundController = soundController;
+		this.listener = listener;
+	}
+
+	/**
+	 * starts the engine thread
+	 */
+	public synchronized void start() {
+		if (thread == null) {
+			running = true;
+			thread = new Thread(this, "PlaybackEngine");
+			thread.start();
+		}
+	}
+
+	/**
+	 * stops the playing and lets the engine thread finish
+	 */
+	public synchronized void quit() {
+		silence();
+		running = false;
+		Thread engineThread = thread;
+		thread = null;
+		LockSupport.unpark(engineThread);
+	}
+
+	@Override
+	public void run() {
+		Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+		while (true) {
+			long waitTime = POSITION_INTERVAL;
+			synchronized (this) {
+				if (!running) {
+					return;
+				}
+				drainInput();
+				if (playState == PlayState.PLAY) {
+					waitTime = tick();
+				} else if (playState == PlayState.WAIT && allNotesPlayed()) {
+					clock.start(PlaybackClock.now());
+					changePlayState(PlayState.PLAY);
+					waitTime = tick();
+				}
+				publishKeyStates();
+			}
+			// the engine sleeps without holding its lock, so the MIDI driver thread can wake it up without blocking.
+			// A wake up between leaving the lock and parking isn't lost, parkNanos then returns right away.
+			if (inputQueue.isEmpty()) {
+				LockSupport.parkNanos(this, Math.max(1, waitTime) * 1000000L);
+			}
+			if (Thread.interrupted()) {
+				return;
+			}
+		}
+	}
+
+	// wakes up the engine thread, which then runs its next tick right away
+	private void wakeUp() {
+		LockSupport.unpark(thread);
+	}
+
+	/**
+	 * advances the song to the current time, fires the due events and queues the next ones
+	 *
+	 * @return the time (msec) until the engine has to run again
+	 */
+	private long tick() {
+		long now = PlaybackClock.now();
+		pulseTime = clock.getPulseTime(now);
+
+		// stop if we've reached the end of the song
+		if (pulseTime > totalPulses) {
+			pulseTime = totalPulses;
+			clock.pause(now);
+			clock.seek(pulseTime, now);
+			silence();
+			setSoundingKeys(0, 0);
+			changePlayState(PlayState.STOP);
+			listener.onPositionChanged(pulseTime);
+			return POSITION_INTERVAL;
+		}
+
+		fireEvents(pulseTime, now);
+		queueEvents(clock.getPulseTime(now + lookahead * 1000000L));
+
+		// in the waiting modes the song only continues when the player played the sounding notes
+		noteIndex.advance(pulseTime);
+		updateSoundingKeys();
+		if ((playMode == PlayMode.FOLLOW_YOU || playMode == PlayMode.RYTHM_TAP) && !allNotesPlayed()) {
+			clock.pause(now);
+			changePlayState(PlayState.WAIT);
+		}
+
+		listener.onPositionChanged(pulseTime);
+
+		if (playState != PlayState.PLAY || numEvents == 0) {
+			return POSITION_INTERVAL;
+		}
+		long timeUntilNextEvent = clock.getTimeOfPulse(eventTimes[0]) - PlaybackClock.now();
+		return Math.min(POSITION_INTERVAL, (timeUntilNextEvent + 999999) / 1000000);
+	}
+
+	// hands the queued key events of the player to the listener
+	private void drainInput() {
+		while (inputQueue.poll()) {
+			int status = inputQueue.getStatus();
+			if (status != MidiInputQueue.NOTE_ON && status != MidiInputQueue.NOTE_OFF) {
+				continue;
+			}
+			int velocity = status == MidiInputQueue.NOTE_ON ? inputQueue.getData2() : 0;
+			keyStates.set(inputQueue.getData1(), KeyStates.PRESSED, velocity > 0);
+			double keyPulseTime = pulseTime;
+			if (clock != null) {
+				keyPulseTime = Math.min(totalPulses, clock.getPulseTime(inputQueue.getTime()));
+			}
+			listener.onKeyEvent(inputQueue.getData1(), velocity, inputQueue.getTime(), keyPulseTime);
+		}
+	}
+
+	// marks the keys of the notes sounding at the position of the note index
+	private void updateSoundingKeys() {
+		long low = 0;
+		long high = 0;
+		for (int i = 0; i < noteIndex.getNumActiveNotes(); i++) {
+			int number = noteTable.getNumber(noteIndex.getActiveNote(i));
+			if (number < 64) {
+				low |= 1L << number;
+			} else {
+				high |= 1L << number;
+			}
+		}
+		setSoundingKeys(low, high);
+	}
+
+	// changes the sounding flag of only the keys which differ from the given pitch bitsets
+	private void setSoundingKeys(long low, long high) {
+		for (long changed = low ^ soundingKeysLow; changed != 0; changed &= changed - 1) {
+			int number = Long.numberOfTrailingZeros(changed);
+			keyStates.set(number, KeyStates.SOUNDING, (low & (1L << number)) != 0);
+		}
+		for (long changed = high ^ soundingKeysHigh; changed != 0; changed &= changed - 1) {
+			int number = Long.numberOfTrailingZeros(changed);
+			keyStates.set(64 + number, KeyStates.SOUNDING, (high & (1L << number)) != 0);
+		}
+		soundingKeysLow = low;
+		soundingKeysHigh = high;
+	}
+
+	// hands the changed key states to the keyboard view
+	private void publishKeyStates() {
+		if (keyStates.publish()) {
+			listener.onKeyStatesChanged();
+		}
+	}
+
+	private boolean allNotesPlayed() {
+		if (pianoPlaying == null) {
+			return true;
+		}
+		for (int i = 0; i < noteIndex.getNumActiveNotes(); i++) {
+			if (!pianoPlaying.wasNotePlayed(noteIndex.getActiveNote(i))) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void changePlayState(PlayState newPlayState) {
+		if (playState != newPlayState) {
+			playState = newPlayState;
+			listener.onPlayStateChanged(newPlayState);
+		}
+	}
+
+	// plays and stops the notes of all events which are due at the given pulse time
+	private void fireEvents(double toPulseTime, long now) {
+		while (numEvents > 0 && eventTimes[0] <= toPulseTime) {
+			int event = events[0];
+			long time = clock.getTimeOfPulse(eventTimes[0]);
+			clock.eventFired(eventTimes[0], now);
+			removeFirstEvent();
+			int number = noteTable.getNumber(event >> 1);
+			if ((event & 1) == 1) {
+				soundController.play(number, 127, time);
+			} else {
+				soundController.stop(number, time);
+			}
+		}
+	}
+
+	// queues the events of all notes starting before the given pulse time
+	private void queueEvents(double toPulseTime) {
+		while (nextNoteOn < noteTable.size() && noteTable.getStartTime(nextNoteOn) < toPulseTime) {
+			if (noteTable.getDuration(nextNoteOn) > 0) {
+				addEvent(noteTable.getStartTime(nextNoteOn), (nextNoteOn << 1) | 1);
+				addEvent(noteTable.getEndTime(nextNoteOn), nextNoteOn << 1);
+			}
+			nextNoteOn++;
+		}
+	}
+
+	// stops all sounding notes and clears the queue
+	private void silence() {
+		while (numEvents > 0) {
+			int event = events[0];
+			removeFirstEvent();
+			if ((event & 1) == 0) {
+				soundController.stop(noteTable.getNumber(event >> 1));
+			}
+		}
+	}
+
+	// adds an event to the heap, note-offs are ordered before note-ons of the same time
+	private void addEvent(double time, int event) {
+		if (numEvents == events.length) {
+			double[] newEventTimes = new double[numEvents * 2];
+			int[] newEvents = new int[numEvents * 2];
+			System.arraycopy(eventTimes, 0, newEventTimes, 0, numEvents);
+			System.arraycopy(events, 0, newEvents, 0, numEvents);
+			eventTimes = newEventTimes;
+			events = newEvents;
+		}
+		int i = numEvents++;
+		while (i > 0) {
+			int parent = (i - 1) / 2;
+			if (!isBefore(time, event, eventTimes[parent], events[parent])) {
+				break;
+			}
+			eventTimes[i] = eventTimes[parent];
+			events[i] = events[parent];
+			i = parent;
+		}
+		eventTimes[i] = time;
+		events[i] = event;
+	}
+
+	private void removeFirstEvent() {
+		numEvents--;
+		double time = eventTimes[numEvents];
+		int event = events[numEvents];
+		int i = 0;
+		while (2 * i + 1 < numEvents) {
+			int child = 2 * i + 1;
+			if (child + 1 < numEvents
+					&& isBefore(eventTimes[child + 1], events[child + 1], eventTimes[child], events[child])) {
+				child++;
+			}
+			if (!isBefore(eventTimes[child], events[child], time, event)) {
+				break;
+			}
+			eventTimes[i] = eventTimes[child];
+			events[i] = events[child];
+			i = child;
+		}
+		eventTimes[i] = time;
+		events[i] = event;
+	}
+
+	private static boolean isBefore(double time1, int event1, double time2, int event2) {
+		return time1 < time2 || (time1 == time2 && (event1 & 1) < (event2 & 1));
+	}
+
+	/**
+	 * sets the song to play and moves to its beginning
+	 */
+	public synchronized void setSong(MidiFile midifile) {
+		silence();
+		noteTable = midifile.getNoteTable();
+		tempoMap = midifile.getTempoMap();
+		totalPulses = midifile.getTotalPulses();
+		noteIndex = new NoteIndex(noteTable);
+		clock = new PlaybackClock(tempoMap);
+		clock.setPlaySpeed(playSpeed, PlaybackClock.now());
+		playState = PlayState.STOP;
+		seek(0);
+	}
+
+	/**
+	 * moves the playing position, the notes sounding at the new position are played again
+	 */
+	public synchronized void seek(double newPulseTime) {
+		if (noteTable == null) {
+			return;
+		}
+		silence();
+		pulseTime = newPulseTime;
+		clock.seek(pulseTime, PlaybackClock.now());
+		noteIndex.seek(pulseTime);
+		for (int i = 0; i < noteIndex.getNumActiveNotes(); i++) {
+			int note = noteIndex.getActiveNote(i);
+			addEvent(pulseTime, (note << 1) | 1);
+			addEvent(noteTable.getEndTime(note), note << 1);
+		}
+		nextNoteOn = noteTable.FirstNoteAtOrAfter(pulseTime);
+		updateSoundingKeys();
+		publishKeyStates();
+		wakeUp();
+	}
+
+	/**
+	 * starts or continues the playing at the current position
+	 */
+	public synchronized void play() {
+		if (noteTable == null) {
+			return;
+		}
+		clock.start(PlaybackClock.now());
+		playState = PlayState.PLAY;
+		wakeUp();
+	}
+
+	/**
+	 * pauses the playing at the current position
+	 */
+	public synchronized void pause() {
+		stopPlaying(PlayState.PAUSE);
+	}
+
+	/**
+	 * stops the playing at the current position
+	 */
+	public synchronized void stop() {
+		stopPlaying(PlayState.STOP);
+	}
+
+	private void stopPlaying(PlayState newPlayState) {
+		if (noteTable != null && (playState == PlayState.PLAY || playState == PlayState.WAIT)) {
+			long now = PlaybackClock.now();
+			clock.pause(now);
+			// queue the current notes again, so they sound when the playing continues
+			seek(clock.getPulseTime(now));
+		}
+		playState = newPlayState;
+	}
+
+	/**
+	 * passes a key event of the player to the engine and wakes it up, so the key is handled right away. It doesn't
+	 * block and may only be called from a single thread, the MIDI driver thread.
+	 *
+	 * @return false if the input queue is full and the event was dropped
+	 */
+	public boolean offerInput(long time, int status, int data1, int data2) {
+		boolean queued = inputQueue.offer(time, status, data1, data2);
+		wakeUp();
+		return queued;
+	}
+
+	/**
+	 * @return the states of the keys, which are published by the engine thread and read by the keyboard view
+	 */
+	public KeyStates getKeyStates() {
+		return keyStates;
+	}
+
+	/**
+	 * wakes up the engine, e.g. when the player played a note it is waiting for
+	 */
+	public synchronized void notePlayed() {
+		wakeUp();
+	}
+
+	/**
+	 * @return the current position of the song (pulses)
+	 */
+	public synchronized double getPulseTime() {
+		return pulseTime;
+	}
+
+	/**
+	 * @return the position of the song (pulses) at this moment, between two position updates of the engine thread
+	 */
+	public synchronized double getCurrentPulseTime() {
+		if (clock == null) {
+			return pulseTime;
+		}
+		return Math.min(totalPulses, clock.getPulseTime(PlaybackClock.now()));
+	}
+
+	/**
+	 * @return the clock of the song, which also measures the drift of the fired events
+	 */
+	public synchronized PlaybackClock getClock() {
+		return clock;
+	}
+
+	/**
+	 * @return the playState
+	 */
+	public synchronized PlayState getPlayState() {
+		return playState;
+	}
+
+	/**
+	 * @param playMode
+	 *            the playMode to set
+	 */
+	public synchronized void setPlayMode(PlayMode playMode) {
+		this.playMode = playMode;
+	}
+
+	/**
+	 * @param playSpeed
+	 *            the playSpeed to set
+	 */
+	public synchronized void setPlaySpeed(double playSpeed) {
+		this.playSpeed = playSpeed;
+		if (clock != null) {
+			clock.setPlaySpeed(playSpeed, PlaybackClock.now());
+		}
+		wakeUp();
+	}
+
+	/**
+	 * @param pianoPlaying
+	 *            the playing of the player, which is checked in the waiting modes
+	 */
+	public synchronized void setPianoPlaying(PianoPlaying pianoPlaying) {
+		this.pianoPlaying = pianoPlaying;
+	}
+
+	/**
+	 * @return the time (msec) the note events are queued in advance
+	 */
+	public synchronized int getLookahead() {
+		return lookahead;
+	}
+
+	/**
+	 * @param lookahead
+	 *            the time (msec) the note events are queued in advance
+	 */
+	public synchronized void setLookahead(int lookahead) {
+		this.lookahead = Math.max(0, lookahead);
+	}
+}
@@ -0,0 +1,164 @@
+package org.climprpiano;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+
+import com.midisheetmusic.NoteTable;
+
+/**
+ * Caches the content of the piano roll, the background, the measure and key lines and the note bars, as bitmap tiles.
+ * The roll only scrolls vertically, so a tile covers the full width and a fixed range of measures and can be blitted
+ * at the current scroll offset in every frame it is visible.
+ *
+ * All tiles are drawn for one zoom level (pixelsPerPulse), key layout and song. If any of them changes, the tiles are
+ * invalidated. The least recently used tiles are evicted once the tiles exceed the memory budget. The cache is only
+ * used on the render thread.
+ */
+public class RollTileCache {
+
+	/** Draws the content of the roll between two pulse times into a tile */
+	public interface TileRenderer {
+		// draws the pulses from fromPulseTime (bottom) to toPulseTime (top) of the roll, toPulseTime at y = 0
+		void drawContent(Canvas canvas, double fromPulseTime, double toPulseTime, int height);
+	}
+
+	public static final int DEFAULT_MEMORY_BUDGET = 8 * 1024 * 1024; // the default memory (bytes) for the tiles
+
+	private TileRenderer renderer;
+	private volatile int memoryBudget = DEFAULT_MEMORY_BUDGET;
+
+	// the tiles, the least recently used first, by the index of their first measure
+	private LinkedHashMap<Integer, Bitmap> tiles = new LinkedHashMap<Integer, Bitmap>(16, 0.75f, true);
+	private Canvas tileCanvas = new Canvas();
+
+	// the state the tiles were drawn for
+	private double pixelsPerPulse;
+	private int width;
+	private int[][] keyPositions;
+	private NoteTable noteTable;
+	private int measure; // the length of a measure (pulses)
+	private int measuresPerTile; // the number of measures in a tile
+	private int tileHeight; // the height (pixels) of a tile
+
+	public RollTileCache(TileRenderer renderer) {
+		this.renderer = renderer;
+	}
+
+	/**
+	 * checks that the tiles were drawn for the given zoom, key layout and song, and invalidates them otherwise
+	 *
+	 * @return false if the tiles for a view of this size don't fit into the memory budget
+	 */
+	public boolean validate(double pixelsPerPulse, int width, int height, int[][] keyPositions, NoteTable noteTable,
+			int measure) {
+		if (pixelsPerPulse != this.pixelsPerPulse || width != this.width || keyPositions != this.keyPositions
+				|| noteTable != this.noteTable || measure != this.measure) {
+			clear();
+			this.pixelsPerPulse = pixelsPerPulse;
+			this.width = width;
+			this.keyPositions = keyPositions;
+			this.noteTable = noteTable;
+			this.measure = measure;
+			// a tile is about half as high as the view, so a frame blits about three tiles
+			measuresPerTile = Math.max(1, (int) (height / 2 / (measure * pixelsPerPulse)));
+			tileHeight = (int) Math.ceil(measuresPerTile * measure * pixelsPerPulse) + 1;
+		}
+		int visibleTiles = height / Math.max(1, tileHeight - 1) + 2;
+		return width > 0 && measure > 0 && visibleTiles * getTileBytes() <= memoryBudget;
+	}
+
+	/**
+	 * invalidates all tiles
+	 */
+	public void clear() {
+		for (Bitmap tile : tiles.values()) {
+			tile.recycle();
+		}
+		tiles.clear();
+	}
+
+	/**
+	 * draws the roll from the tiles, the tiles which aren't cached yet are drawn first
+	 */
+	public void draw(Canvas canvas, double pulseTime, int height) {
+		double tilePulses = measuresPerTile * measure;
+		int firstTile = (int) Math.floor(pulseTime / tilePulses);
+		int lastTile = (int) Math.floor((pulseTime + height / pixelsPerPulse) / tilePulses);
+		for (int index = firstTile; index <= lastTile; index++) {
+			// the top of the tile is at the end of its pulse range
+			double top = height - ((index + 1) * tilePulses - pulseTime) * pixelsPerPulse;
+			canvas.drawBitmap(getTile(index), 0, (float) Math.floor(top), null);
+		}
+	}
+
+	/**
+	 * @return true if the tile following the visible ones still has to be drawn
+	 */
+	public boolean needsPrefetch(double pulseTime, int height) {
+		return !tiles.containsKey(getNextTile(pulseTime, height));
+	}
+
+	/**
+	 * draws the tile following the visible ones, so it is ready when the roll scrolls on
+	 */
+	public void prefetch(double pulseTime, int height) {
+		getTile(getNextTile(pulseTime, height));
+	}
+
+	// the index of the tile above the top of the view
+	private int getNextTile(double pulseTime, int height) {
+		double tilePulses = measuresPerTile * measure;
+		return (int) Math.floor((pulseTime + height / pixelsPerPulse) / tilePulses) + 1;
+	}
+
+	// returns the tile with the given index, drawing it if needed
+	private Bitmap getTile(int index) {
+		Bitmap tile = tiles.get(index);
+		if (tile != null) {
+			return tile;
+		}
+
+		// evict the least recently used tiles, reusing the bitmap of the last one
+		Bitmap reused = null;
+		Iterator<Map.Entry<Integer, Bitmap>> eldest = tiles.entrySet().iterator();
+		while (eldest.hasNext() && (tiles.size() + 1) * getTileBytes() > memoryBudget) {
+			if (reused != null) {
+				reused.recycle();
+			}
+			reused = eldest.next().getValue();
+			eldest.remove();
+		}
+		tile = reused != null ? reused : Bitmap.createBitmap(width, tileHeight, Bitmap.Config.RGB_565);
+
+		// the tile is one pixel higher than its measures, so neighbouring tiles overlap instead of leaving a gap
+		double toPulseTime = (index + 1) * measuresPerTile * measure;
+		tileCanvas.setBitmap(tile);
+		renderer.drawContent(tileCanvas, toPulseTime - tileHeight / pixelsPerPulse, toPulseTime, tileHeight);
+		tiles.put(index, tile);
+		return tile;
+	}
+
+	// the memory (bytes) of one tile
+	private int getTileBytes() {
+		return width * tileHeight * 2;
+	}
+
+	/**
+	 * @param memoryBudget
+	 *            the memory (bytes) the tiles may use
+	 */
+	public void setMemoryBudget(int memoryBudget) {
+		this.memoryBudget = memoryBudget;
+	}
+
+	/**
+	 * @return the memory (bytes) the tiles may use
+	 */
+	public int getMemoryBudget() {
+		return memoryBudget;
+	}
+}
@@ -0,0 +1,150 @@
+package org.climprpiano;
+
+import com.midisheetmusic.NoteTable;
+import com.midisheetmusic.TempoMap;
+
+/**
+ * Matches the keys pressed by the player to the notes of the song. For each of the 128 pitches the notes of that pitch
+ * are kept as a queue of upcoming unplayed notes in the order they start. A key press only looks at the head of the
+ * queue of its pitch, notes which were missed are dropped from the head on the way, so matching takes amortized
+ * constant time.
+ *
+ * A note can be matched from earlyTolerance milliseconds before its start until lateTolerance milliseconds after its
+ * end. The tolerances are real time, they are converted to the song time through the tempo map and the play speed.
+ */
+public class ScoreFollower {
+
+	public static final int DEFAULT_EARLY_TOLERANCE = 150; // the default time (msec) a note may be played too early
+	public static final int DEFAULT_LATE_TOLERANCE = 100; // the default time (msec) a note may be played after its end
+
+	private NoteTable noteTable;
+	private TempoMap tempoMap;
+
+	private int[] pitchNotes; // the note table indices grouped by pitch, each group sorted by start time
+	private int[] pitchStarts; // the first entry of each pitch in pitchNotes, pitchStarts[128] is the end
+	private int[] heads; // the first entry of each pitch which was neither played nor missed yet
+	private int[] maxDurations; // the longest duration (pulses) of the notes of each pitch
+
+	private int earlyTolerance = DEFAULT_EARLY_TOLERANCE;
+	private int lateTolerance = DEFAULT_LATE_TOLERANCE;
+	private double playSpeed = 1;
+
+	public ScoreFollower(NoteTable noteTable, TempoMap tempoMap) {
+		this.noteTable = noteTable;
+		this.tempoMap = tempoMap;
+
+		// group the notes by pitch, the note table is sorted by start time so each group is as well
+		pitchStarts = new int[129];
+		for (int note = 0; note < noteTable.size(); note++) {
+			pitchStarts[noteTable.getNumber(note) + 1]++;
+		}
+		for (int pitch = 0; pitch < 128; pitch++) {
+			pitchStarts[pitch + 1] += pitchStarts[pitch];
+		}
+		pitchNotes = new int[noteTable.size()];
+		int[] fill = new int[128];
+		System.arraycopy(pitchStarts, 0, fill, 0, 128);
+		maxDurations = new int[128];
+		for (int note = 0; note < noteTable.size(); note++) {
+			int pitch = noteTable.getNumber(note);
+			pitchNotes[fill[pitch]++] = note;
+			maxDurations[pitch] = Math.max(maxDurations[pitch], noteTable.getDuration(note));
+		}
+
+		heads = new int[128];
+		seek(0);
+	}
+
+	/**
+	 * positions the queues at the given pulse time, every note which can still be matched at that time is upcoming again
+	 */
+	public synchronized void seek(double pulseTime) {
+		double msec = tempoMap.PulseToMsec(pulseTime);
+		for (int pitch = 0; pitch < 128; pitch++) {
+			// the end times of a pitch aren't sorted, but no note ends later than its start plus the longest duration
+			// of the pitch, which is sorted. A binary search on that bound skips the notes which are surely missed,
+			// the head is then the first of the following notes which isn't missed.
+			int low = pitchStarts[pitch];
+			int high = pitchStarts[pitch + 1];
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				int latestEnd = noteTable.getStartTime(pitchNotes[mid]) + maxDurations[pitch];
+				if (tempoMap.PulseToMsec(latestEnd) + lateTolerance * playSpeed < msec) {
+					low = mid + 1;
+				} else {
+					high = mid;
+				}
+			}
+			int end = pitchStarts[pitch + 1];
+			while (low < end && isMissed(pitchNotes[low], msec)) {
+				low++;
+			}
+			heads[pitch] = low;
+		}
+	}
+
+	/**
+	 * matches a key press of the given pitch at the given pulse time to the next unplayed note of that pitch
+	 *
+	 * @return the note table index of the matched note, which is removed from its queue, or -1 if no note matches
+	 */
+	public synchronized int match(int pitch, double pulseTime) {
+		if (pitch < 0 || pitch > 127) {
+			return -1;
+		}
+		double msec = tempoMap.PulseToMsec(pulseTime);
+		int end = pitchStarts[pitch + 1];
+		int head = heads[pitch];
+
+		// drop the notes which ended too long ago
+		while (head < end && isMissed(pitchNotes[head], msec)) {
+			head++;
+		}
+		heads[pitch] = head;
+
+		if (head < end && tempoMap.PulseToMsec(noteTable.getStartTime(pitchNotes[head])) - earlyTolerance
+				* playSpeed <= msec) {
+			heads[pitch] = head + 1;
+			return pitchNotes[head];
+		}
+		return -1;
+	}
+
+	// true if the note can't be matched anymore at the given song time
+	private boolean isMissed(int note, double msec) {
+		return tempoMap.PulseToMsec(noteTable.getEndTime(note)) + lateTolerance * playSpeed < msec;
+	}
+
+	/**
+	 * @param earlyTolerance
+	 *            the time (msec) a note may be played before its start
+	 * @param lateTolerance
+	 *            the time (msec) a note may be played after its end
+	 */
+	public synchronized void setTolerances(int earlyTolerance, int lateTolerance) {
+		this.earlyTolerance = Math.max(0, earlyTolerance);
+		this.lateTolerance = Math.max(0, lateTolerance);
+	}
+
+	/**
+	 * @return the earlyTolerance
+	 */
+	public synchronized int getEarlyTolerance() {
+		return earlyTolerance;
+	}
+
+	/**
+	 * @return the lateTolerance
+	 */
+	public synchronized int getLateTolerance() {
+		return lateTolerance;
+	}
+
+	/**
+	 * @param playSpeed
+	 *            the playSpeed to set, the tolerances are scaled with it
+	 */
+	public synchronized void setPlaySpeed(double playSpeed) {
+		this.playSpeed = playSpeed;
+	}
+}
@@ -0,0 +1,46 @@
+package org.climprpiano.util;
+
+import android.os.Build;
+import android.os.Handler;
+
+/**
+ * Runs a frame callback at most once per display frame on the thread of a {@link Handler}. On newer devices, see
+ * {@link #getInstance}, the frames are paced by the vsync of the display through {@link FramePacerJellyBean}, on
+ * older devices {@link FramePacerBase} paces them with a fixed frame interval.
+ */
+public abstract class FramePacer {
+
+	/**
+	 * The handler of the thread the frames are drawn on.
+	 */
+	protected Handler handler;
+
+	/**
+	 * The callback drawing a frame.
+	 */
+	protected Runnable frame;
+
+	/**
+	 * @param handler
+	 *            the handler of the thread the frames are drawn on, its looper must be running
+	 * @param frame
+	 *            the callback drawing a frame
+	 */
+	public static FramePacer getInstance(Handler handler, Runnable frame) {
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+			return new FramePacerJellyBean(handler, frame);
+		} else {
+			return new FramePacerBase(handler, frame);
+		}
+	}
+
+	protected FramePacer(Handler handler, Runnable frame) {
+		this.handler = handler;
+		this.frame = frame;
+	}
+
+	/**
+	 * lets the frame callback run at the next frame, may only be called on the thread of the handler
+	 */
+	public abstract void requestFrame();
+}
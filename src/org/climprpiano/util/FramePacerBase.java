@@ -0,0 +1,37 @@
+package org.climprpiano.util;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+/**
+ * A {@link FramePacer} for devices without {@link android.view.Choreographer}. The frames are kept at least
+ * FRAME_INTERVAL milliseconds apart.
+ */
+public class FramePacerBase extends FramePacer {
+
+	public static final int FRAME_INTERVAL = 16; // the time (msec) of a display frame at 60 Hz
+
+	private long lastFrameTime; // the uptime (msec) the last frame started
+	private boolean requested; // true while a frame is posted
+
+	protected FramePacerBase(Handler handler, Runnable frame) {
+		super(handler, frame);
+	}
+
+	@Override
+	public void requestFrame() {
+		if (!requested) {
+			requested = true;
+			long delay = lastFrameTime + FRAME_INTERVAL - SystemClock.uptimeMillis();
+			handler.postDelayed(doFrame, Math.max(0, delay));
+		}
+	}
+
+	private Runnable doFrame = new Runnable() {
+		public void run() {
+			requested = false;
+			lastFrameTime = SystemClock.uptimeMillis();
+			frame.run();
+		}
+	};
+}
@@ -0,0 +1,40 @@
+package org.climprpiano.util;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Handler;
+import android.view.Choreographer;
+
+/**
+ * An API 16+ implementation of {@link FramePacer}. The frames are run by the {@link Choreographer} of the handler's
+ * thread, so they follow the vsync of the display.
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+public class FramePacerJellyBean extends FramePacer {
+
+	private Choreographer choreographer; // the choreographer of the handler's thread, created on first use
+	private boolean requested; // true while a frame callback is posted
+
+	protected FramePacerJellyBean(Handler handler, Runnable frame) {
+		super(handler, frame);
+	}
+
+	@Override
+	public void requestFrame() {
+		if (!requested) {
+			if (choreographer == null) {
+				// the choreographer belongs to the looper of the calling thread
+				choreographer = Choreographer.getInstance();
+			}
+			requested = true;
+			choreographer.postFrameCallback(doFrame);
+		}
+	}
+
+	private Choreographer.FrameCallback doFrame = new Choreographer.FrameCallback() {
+		public void doFrame(long frameTimeNanos) {
+			requested = false;
+			frame.run();
+		}
+	};
+}
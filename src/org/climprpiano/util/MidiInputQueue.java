@@ -0,0 +1,112 @@
+package org.climprpiano.util;
+
+/**
+ * A lock-free queue of MIDI events for exactly one producer thread and one consumer thread, e.g. the USB MIDI driver
+ * and the playback engine, or the playback engine and the audio thread of the software mixer. An event is stored as two primitive values, its time and its status and data bytes packed into an
+ * int, so neither side allocates or blocks. If the consumer falls behind and the queue is full, new events are dropped
+ * and counted.
+ */
+public class MidiInputQueue {
+
+	public static final int NOTE_OFF = 0x80; // the status of a note-off event
+	public static final int NOTE_ON = 0x90; // the status of a note-on event
+
+	private final long[] times; // the time (nsec) of each event
+	private final int[] messages; // the status, data1 and data2 of each event, one byte each
+	private final int mask; // the capacity minus one, the capacity is a power of two
+
+	private volatile long writeCount; // the number of events ever written, only changed by the producer
+	private volatile long readCount; // the number of events ever read, only changed by the consumer
+	private volatile int droppedCount; // the number of events dropped because the queue was full
+
+	// the event read by the last poll
+	private long time;
+	private int message;
+
+	public MidiInputQueue(int capacity) {
+		int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+		times = new long[size];
+		messages = new int[size];
+		mask = size - 1;
+	}
+
+	/**
+	 * adds an event, may only be called from the producer thread
+	 *
+	 * @return false if the queue is full and the event was dropped
+	 */
+	public boolean offer(long time, int status, int data1, int data2) {
+		long write = writeCount;
+		if (write - readCount > mask) {
+			droppedCount++;
+			return false;
+		}
+		int slot = (int) write & mask;
+		times[slot] = time;
+		messages[slot] = (status & 0xFF) << 16 | (data1 & 0xFF) << 8 | (data2 & 0xFF);
+		// the volatile write publishes the event to the consumer
+		writeCount = write + 1;
+		return true;
+	}
+
+	/**
+	 * takes the oldest event, which can then be read with getTime, getStatus, getData1 and getData2. May only be called
+	 * from the consumer thread.
+	 *
+	 * @return false if the queue is empty
+	 */
+	public boolean poll() {
+		long read = readCount;
+		if (read == writeCount) {
+			return false;
+		}
+		int slot = (int) read & mask;
+		time = times[slot];
+		message = messages[slot];
+		// the volatile write hands the slot back to the producer
+		readCount = read + 1;
+		return true;
+	}
+
+	/**
+	 * @return true if there is no event to poll
+	 */
+	public boolean isEmpty() {
+		return readCount == writeCount;
+	}
+
+	/**
+	 * @return the time (nsec) of the polled event
+	 */
+	public long getTime() {
+		return time;
+	}
+
+	/**
+	 * @return the status byte of the polled event
+	 */
+	public int getStatus() {
+		return message >> 16 & 0xFF;
+	}
+
+	/**
+	 * @return the first data byte of the polled event, the note number of note events
+	 */
+	public int getData1() {
+		return message >> 8 & 0xFF;
+	}
+
+	/**
+	 * @return the second data byte of the polled event, the velocity of note events
+	 */
+	public int getData2() {
+		return message & 0xFF;
+	}
+
+	/**
+	 * @return the number of events which were dropped because the queue was full
+	 */
+	public int getDroppedCount() {
+		return droppedCount;
+	}
+}
@@ -25,63 +25,160 @@
 
 package org.hexiano;
 
+import java.io.IOException;
 import java.util.HashMap;
-import java.util.Iterator;
 
 import android.annotation.SuppressLint;
 import android.content.Context;
+import android.database.ContentObserver;
 import android.media.AudioManager;
 import android.media.SoundPool;
+import android.provider.Settings;
 
 @SuppressLint("UseSparseArrays")
 public abstract class Instrument {
 
-	public static final int POLYPHONY_COUNT = 8;
+	public static final int POLYPHONY_COUNT = 16;
 	public SoundPool mSoundPool;
-	protected static HashMap<Integer, Integer> mSounds;
-	protected static HashMap<Integer, Float> mRates;
-	protected static HashMap<Integer, Integer> mRootNotes;
+	private int mPolyphony;
+	private int[] mSounds = new int[128]; // the loaded sample of each root note, 0 if not loaded
+	protected SampleBank mBank;
 	private AudioManager mAudioManager;
+	// The volume of each velocity at the current stream volume, replaced
+	// whenever the stream volume changes instead of asking the AudioManager
+	// on every note.
+	private volatile float[] mGains;
+	private volatile int mStreamVolume; // the stream volume mGains was built for
 	private Context mContext;
-	public Iterator<int[]> sound_load_queue;
+	private HashMap<Integer, Integer> mLoadStatus = new HashMap<Integer, Integer>();
 
 	public Instrument(Context context) {
+		this(context, POLYPHONY_COUNT);
+	}
+
+	public Instrument(Context context, int polyphony) {
 		mContext = context;
+		mPolyphony = polyphony;
 		init(context);
 	}
 
 	public void init(Context context) {
-		mSoundPool = new SoundPool(POLYPHONY_COUNT, AudioManager.STREAM_MUSIC, 0);
-		mSounds = new HashMap<Integer, Integer>();
-		mRates = new HashMap<Integer, Float>();
-		mRootNotes = new HashMap<Integer, Integer>();
+		mSoundPool = new SoundPool(mPolyphony, AudioManager.STREAM_MUSIC, 0);
 		mAudioManager = (AudioManager) mContext.getSystemService(Context.AUDIO_SERVICE);
+		updateGains();
+		// the stream volumes are stored in the system settings, which notify
+		// their observers of every change
+		mContext.getContentResolver().registerContentObserver(Settings.System.CONTENT_URI, true, mVolumeObserver);
+	}
+
+	// Stops listening to the volume changes, the instrument can't be used
+	// afterwards.
+	public void release() {
+		mContext.getContentResolver().unregisterContentObserver(mVolumeObserver);
+		mSoundPool.release();
+	}
+
+	// Called on a binder thread for any changed setting, the gains are only
+	// replaced if the music stream volume is different.
+	private ContentObserver mVolumeObserver = new ContentObserver(null) {
+		@Override
+		public void onChange(boolean selfChange) {
+			if (mAudioManager.getStreamVolume(AudioManager.STREAM_MUSIC) != mStreamVolume) {
+				updateGains();
+			}
+		}
+	};
+
+	private void updateGains() {
+		mStreamVolume = mAudioManager.getStreamVolume(AudioManager.STREAM_MUSIC);
+		float streamVolume = 1.0f * mStreamVolume
+				/ mAudioManager.getStreamMaxVolume(AudioManager.STREAM_MUSIC);
+		float[] gains = new float[128];
+		for (int velocity = 0; velocity < 128; velocity++) {
+			gains[velocity] = streamVolume * velocity / 128;
+		}
+		mGains = gains;
+	}
+
+	// Loads a sound and waits until the sound pool finished loading it, so
+	// sounds can be loaded from several threads at once. Throws an
+	// IOException if the sound pool couldn't load the sound.
+	public void addSound(int index, int soundId) throws InterruptedException, IOException {
+		int sampleId = mSoundPool.load(mContext, soundId, 1);
+		if (sampleId == 0) {
+			// no load complete callback follows a failed load
+			throw new IOException("The sound pool refused to load the sound");
+		}
+		synchronized (this) {
+			while (!mLoadStatus.containsKey(sampleId)) {
+				wait();
+			}
+			if (mLoadStatus.remove(sampleId) != 0) {
+				throw new IOException("The sound pool failed to load the sound");
+			}
+			mSounds[index] = sampleId;
+		}
+	}
+
+	// Has to be called from the OnLoadCompleteListener of mSoundPool.
+	public synchronized void onLoadComplete(int sampleId, int status) {
+		mLoadStatus.put(sampleId, status);
+		notifyAll();
 	}
 
-	public void addSound(int index, int soundId) {
-		mSounds.put(index, mSoundPool.load(mContext, soundId, 1));
+	public SampleBank getSampleBank() {
+		return mBank;
+	}
+
+	// Returns true if the sample playing the note is loaded.
+	public boolean isPlayable(int midiNoteNumber) {
+		int index = mBank.getRootNote(midiNoteNumber);
+		if (index < 0) {
+			return false;
+		}
+		synchronized (this) {
+			return mSounds[index] != 0;
+		}
 	}
 
 	public int play(int midiNoteNumber, int velocity) {
-		int index = mRootNotes.get(midiNoteNumber);
-		if (!mSounds.containsKey(index)) {
+		int index = mBank.getRootNote(midiNoteNumber);
+		if (index < 0) {
+			return -1;
+		}
+		int sampleId;
+		synchronized (this) {
+			sampleId = mSounds[index];
+		}
+		if (sampleId == 0) {
 			return -1;
 		}
-		float rate = mRates.get(midiNoteNumber);
+		float rate = mBank.getRate(midiNoteNumber);
 
-		float streamVolume = 1.0f
-				* mAudioManager.getStreamVolume(AudioManager.STREAM_MUSIC)
-				/ mAudioManager.getStreamMaxVolume(AudioManager.STREAM_MUSIC)
-				* velocity / 128;
-		return mSoundPool.play(mSounds.get(index), streamVolume, streamVolume, 1, 0, rate);
+		float streamVolume = getVolume(velocity);
+		return mSoundPool.play(sampleId, streamVolume, streamVolume, 1, 0, rate);
 	}
 
 	public void stop(int streamId) {
 		mSoundPool.stop(streamId);
 	}
 
+	// Changes the volume of a playing stream, e.g. to let a released note fade.
+	public void setVolume(int streamId, float volume) {
+		mSoundPool.setVolume(streamId, volume, volume);
+	}
+
+	// The volume a note of the given velocity is played with.
+	public float getVolume(int velocity) {
+		return mGains[velocity & 0x7F];
+	}
+
+	public int getPolyphony() {
+		return mPolyphony;
+	}
+
 	public void loop(int index) {
 		int streamVolume = mAudioManager.getStreamVolume(AudioManager.STREAM_MUSIC);
-		mSoundPool.play(mSounds.get(index), streamVolume, streamVolume, 1, -1, 1f);
+		mSoundPool.play(mSounds[index], streamVolume, streamVolume, 1, -1, 1f);
 	}
 }
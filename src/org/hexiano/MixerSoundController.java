@@ -0,0 +1,127 @@
+package org.hexiano;
+
+import java.io.IOException;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioTrack;
+import android.os.Build;
+import android.os.Process;
+
+/**
+ * Plays the notes through a {@link SampleMixer} and an AudioTrack of its own instead of a SoundPool. The samples are
+ * decoded in parallel by a {@link SampleLoader}, the mixer renders small buffers on an audio thread.
+ *
+ * The notes are placed at the frame of their timestamp: each buffer is rendered for the time one buffer ago, so the
+ * notes of the last buffer period keep their distance to each other and only get a constant delay of one buffer. The
+ * timestamps are System.nanoTime() values, the time base of the playback clock of the app.
+ *
+ * The notes reach the audio thread through the single-producer queue of the mixer, so play, stop and stopAll must not
+ * be called from two threads at once: while a song plays only the playback engine calls them, the latency calibration
+ * only while the engine is stopped.
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+public class MixerSoundController extends SoundController implements Runnable {
+
+	public static final int SAMPLE_RATE = 44100; // the output frames per second
+	public static final int BUFFER_FRAMES = 256; // the frames rendered at once
+
+	SampleMixer mMixer;
+	AudioTrack mTrack;
+	Thread mAudioThread;
+	volatile boolean mRunning;
+
+	public MixerSoundController(Context con) {
+		super(con);
+	}
+
+	@Override
+	protected void loadKeyboard(final Context con) {
+		mMixer = new SampleMixer(SAMPLE_RATE, mPolyphony, BUFFER_FRAMES);
+		SampleBank bank = new SampleBank(con.getResources());
+		for (int note = 0; note < 128; note++) {
+			if (bank.getRootNote(note) >= 0) {
+				mMixer.setRootNote(note, bank.getRootNote(note), bank.getRate(note));
+			}
+		}
+
+		// every decoding thread needs a decoder of its own
+		mLoader = new SampleLoader(bank.getSoundList(), new SampleLoader.Task() {
+			@Override
+			public void load(int rootNote, int resId) throws IOException {
+				SampleDecoder decoder = new SampleDecoder();
+				short[] sample = decoder.decode(con, resId);
+				mMixer.setSample(rootNote, sample, decoder.getSampleRate());
+			}
+		});
+		mLoader.start(Runtime.getRuntime().availableProcessors());
+
+		int bufferSize = Math.max(AudioTrack.getMinBufferSize(SAMPLE_RATE, AudioFormat.CHANNEL_OUT_MONO,
+				AudioFormat.ENCODING_PCM_16BIT), BUFFER_FRAMES * 2 * 2);
+		mTrack = new AudioTrack(AudioManager.STREAM_MUSIC, SAMPLE_RATE, AudioFormat.CHANNEL_OUT_MONO,
+				AudioFormat.ENCODING_PCM_16BIT, bufferSize, AudioTrack.MODE_STREAM);
+		mRunning = true;
+		mAudioThread = new Thread(this, "Mixer");
+		mAudioThread.start();
+	}
+
+	@Override
+	public void run() {
+		Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+		short[] buffer = new short[BUFFER_FRAMES];
+		long bufferNanos = BUFFER_FRAMES * 1000000000L / SAMPLE_RATE;
+		mTrack.play();
+		while (mRunning) {
+			mMixer.render(buffer, 0, BUFFER_FRAMES, System.nanoTime() - bufferNanos);
+			// blocks until the track has room for the buffer
+			mTrack.write(buffer, 0, BUFFER_FRAMES);
+		}
+		mTrack.stop();
+		mTrack.release();
+	}
+
+	@Override
+	public void play(int midiNoteNumber, int velocity) {
+		play(midiNoteNumber, velocity, System.nanoTime());
+	}
+
+	@Override
+	public void stop(int midiNoteNumber) {
+		stop(midiNoteNumber, System.nanoTime());
+	}
+
+	@Override
+	public void play(int midiNoteNumber, int velocity, long time) {
+		mMixer.noteOn(time, midiNoteNumber, velocity);
+	}
+
+	@Override
+	public void stop(int midiNoteNumber, long time) {
+		mMixer.noteOff(time, midiNoteNumber);
+	}
+
+	@Override
+	public void stopAll() {
+		mMixer.allNotesOff(System.nanoTime());
+	}
+
+	@Override
+	public void release() {
+		mLoader.cancel();
+		mRunning = false;
+		try {
+			mAudioThread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * @return the mixer playing the notes
+	 */
+	public SampleMixer getMixer() {
+		return mMixer;
+	}
+}
@@ -78,70 +78,17 @@ http://creativecommons.org/licenses/by/3.0/
 
 package org.hexiano;
 
-import java.lang.reflect.Field;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-
-import org.climprpiano.R;
-import org.climprpiano.R.raw;
-
 import android.content.Context;
-import android.util.Log;
 
 public class PianoInstrument extends Instrument {
 	public PianoInstrument(Context context) {
-		super(context);
-
-		Pattern pat = Pattern.compile("^pno0*([0-9]+)v");
-		Class<raw> raw = R.raw.class;
-		Field[] fields = raw.getFields();
-		List<int[]> sounds = new ArrayList<int[]>(); // Are there really no
-														// tuples in Java?!
-		for (Field field : fields) {
-			try {
-				String fieldName = field.getName();
-				if (fieldName.startsWith("pno", 0)) {
-					int midiNoteNumber;
-					Matcher mat = pat.matcher(fieldName);
-					if (mat.find()) {
-						String midiNoteNumberStr = mat.group(1);
-						midiNoteNumber = Integer.parseInt(midiNoteNumberStr);
-						int fieldValue = field.getInt(null);
-						Log.d("Piano", midiNoteNumberStr + ": " + fieldValue);
-						int[] tuple = { midiNoteNumber, fieldValue };
-						sounds.add(0, tuple);
-						mRootNotes.put(midiNoteNumber, midiNoteNumber);
-						mRates.put(midiNoteNumber, 1.0f);
-					}
-				}
-			} catch (IllegalAccessException e) {
-				Log.e("REFLECTION",
-						String.format("%s threw IllegalAccessException.",
-								field.getName()));
-			}
-		}
-
-		sound_load_queue = sounds.iterator();
-		// Start loading the first sound, the rest are started from the
-		// OnLoadCompleteListener.
-		int[] tuple = sound_load_queue.next();
-		addSound(tuple[0], tuple[1]);
-
-		float previousRate = 1.0f;
-		int previousRootNote = 21;
-		for (int noteId = 21; noteId < 110; noteId++) {
-			if (mRootNotes.containsKey(noteId)) {
-				previousRootNote = noteId;
-				previousRate = 1.0f;
-			} else {
-				mRootNotes.put(noteId, previousRootNote);
-				double oneTwelfth = 1.0 / 12.0;
-				double newRate = previousRate * Math.pow(2, oneTwelfth);
-				previousRate = (float) newRate;
-				mRates.put(noteId, previousRate);
-			}
-		}
+		this(context, POLYPHONY_COUNT);
+	}
+
+	public PianoInstrument(Context context, int polyphony) {
+		super(context, polyphony);
+
+		// The sounds are loaded by the SampleLoader of the SoundController.
+		mBank = new SampleBank(context.getResources());
 	}
 }
@@ -0,0 +1,84 @@
+package org.hexiano;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.climprpiano.R;
+
+import android.content.res.Resources;
+import android.content.res.TypedArray;
+
+/**
+ * The piano samples as described by res/values/sample_bank.xml, which aapt compiles into the resources at build time,
+ * so no reflection over R.raw is needed at startup. Every note is played by the sample of the closest root note below
+ * it, at the rate shifting the root note to the note. Both are kept in primitive lookup arrays by note.
+ */
+public class SampleBank {
+
+	public static final int HIGHEST_NOTE = 109; // the highest note played by the samples
+
+	private final int[] mResIds; // the raw resource of each sample, by ascending root note
+	private final int[] mSampleRootNotes; // the note each sample was recorded at
+	private final int[] mVelocities; // the velocity each sample was played with
+
+	private final int[] mRootNotes = new int[128]; // the root note playing each note, -1 for none
+	private final float[] mRates = new float[128]; // the rate the root note is played at for each note
+
+	public SampleBank(Resources resources) {
+		TypedArray samples = resources.obtainTypedArray(R.array.piano_samples);
+		mResIds = new int[samples.length()];
+		for (int i = 0; i < mResIds.length; i++) {
+			mResIds[i] = samples.getResourceId(i, 0);
+		}
+		samples.recycle();
+		mSampleRootNotes = resources.getIntArray(R.array.piano_sample_root_notes);
+		mVelocities = resources.getIntArray(R.array.piano_sample_velocities);
+
+		int rootNote = -1;
+		int sample = 0;
+		for (int note = 0; note < 128; note++) {
+			if (sample < mSampleRootNotes.length && mSampleRootNotes[sample] == note) {
+				rootNote = note;
+				sample++;
+			}
+			mRootNotes[note] = note <= HIGHEST_NOTE ? rootNote : -1;
+			mRates[note] = mRootNotes[note] < 0 ? 0 : (float) Math.pow(2, (note - rootNote) / 12.0);
+		}
+	}
+
+	// The number of samples.
+	public int size() {
+		return mResIds.length;
+	}
+
+	public int getResId(int sample) {
+		return mResIds[sample];
+	}
+
+	public int getSampleRootNote(int sample) {
+		return mSampleRootNotes[sample];
+	}
+
+	public int getVelocity(int sample) {
+		return mVelocities[sample];
+	}
+
+	// The root note whose sample plays the note, -1 if no sample plays it.
+	public int getRootNote(int midiNoteNumber) {
+		return mRootNotes[midiNoteNumber];
+	}
+
+	// The rate the sample of the root note is played at for the note.
+	public float getRate(int midiNoteNumber) {
+		return mRates[midiNoteNumber];
+	}
+
+	// The samples as { rootNote, resId } tuples.
+	public List<int[]> getSoundList() {
+		List<int[]> sounds = new ArrayList<int[]>(mResIds.length);
+		for (int sample = 0; sample < mResIds.length; sample++) {
+			sounds.add(new int[] { mSampleRootNotes[sample], mResIds[sample] });
+		}
+		return sounds;
+	}
+}
@@ -0,0 +1,133 @@
+package org.hexiano;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.content.res.AssetFileDescriptor;
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.media.MediaFormat;
+import android.os.Build;
+
+/**
+ * Decodes a compressed sample resource, e.g. the pno*.ogg samples, into mono 16 bit PCM for the {@link SampleMixer}.
+ * Multiple channels are mixed down to one. Decoding uses MediaCodec, which is available from Jelly Bean on.
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+public class SampleDecoder {
+
+	private static final long TIMEOUT = 10000; // the time (usec) to wait for a codec buffer
+
+	private short[] samples = new short[64 * 1024];
+	private int length;
+	private int sampleRate;
+
+	/**
+	 * @return true if samples can be decoded on this device
+	 */
+	public static boolean isAvailable() {
+		return Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN;
+	}
+
+	/**
+	 * decodes the raw resource
+	 *
+	 * @return the mono frames of the sample, its sample rate is returned by getSampleRate
+	 */
+	public short[] decode(Context context, int resId) throws IOException {
+		length = 0;
+		MediaExtractor extractor = new MediaExtractor();
+		MediaCodec codec = null;
+		try {
+			AssetFileDescriptor fd = context.getResources().openRawResourceFd(resId);
+			try {
+				extractor.setDataSource(fd.getFileDescriptor(), fd.getStartOffset(), fd.getLength());
+			} finally {
+				fd.close();
+			}
+			MediaFormat format = extractor.getTrackFormat(0);
+			extractor.selectTrack(0);
+			sampleRate = format.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+			int channels = format.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+
+			codec = MediaCodec.createDecoderByType(format.getString(MediaFormat.KEY_MIME));
+			codec.configure(format, null, null, 0);
+			codec.start();
+			ByteBuffer[] inputBuffers = codec.getInputBuffers();
+			ByteBuffer[] outputBuffers = codec.getOutputBuffers();
+			MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+			boolean inputDone = false;
+			while (true) {
+				if (!inputDone) {
+					int input = codec.dequeueInputBuffer(TIMEOUT);
+					if (input >= 0) {
+						int size = extractor.readSampleData(inputBuffers[input], 0);
+						if (size < 0) {
+							codec.queueInputBuffer(input, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+							inputDone = true;
+						} else {
+							codec.queueInputBuffer(input, 0, size, extractor.getSampleTime(), 0);
+							extractor.advance();
+						}
+					}
+				}
+
+				int output = codec.dequeueOutputBuffer(info, TIMEOUT);
+				if (output >= 0) {
+					ByteBuffer buffer = outputBuffers[output];
+					buffer.position(info.offset);
+					buffer.limit(info.offset + info.size);
+					append(buffer.slice().order(ByteOrder.nativeOrder()).asShortBuffer(), channels);
+					codec.releaseOutputBuffer(output, false);
+					if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+						break;
+					}
+				} else if (output == MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED) {
+					outputBuffers = codec.getOutputBuffers();
+				} else if (output == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
+					MediaFormat outputFormat = codec.getOutputFormat();
+					sampleRate = outputFormat.getInteger(MediaFormat.KEY_SAMPLE_RATE);
+					channels = outputFormat.getInteger(MediaFormat.KEY_CHANNEL_COUNT);
+				}
+			}
+		} finally {
+			if (codec != null) {
+				codec.stop();
+				codec.release();
+			}
+			extractor.release();
+		}
+
+		short[] result = new short[length];
+		System.arraycopy(samples, 0, result, 0, length);
+		return result;
+	}
+
+	// appends the frames of the decoded buffer, mixed down to mono
+	private void append(ShortBuffer buffer, int channels) {
+		int frames = buffer.remaining() / channels;
+		if (length + frames > samples.length) {
+			short[] newSamples = new short[Math.max(samples.length * 2, length + frames)];
+			System.arraycopy(samples, 0, newSamples, 0, length);
+			samples = newSamples;
+		}
+		for (int frame = 0; frame < frames; frame++) {
+			int sum = 0;
+			for (int channel = 0; channel < channels; channel++) {
+				sum += buffer.get();
+			}
+			samples[length++] = (short) (sum / channels);
+		}
+	}
+
+	/**
+	 * @return the sample rate of the last decoded sample
+	 */
+	public int getSampleRate() {
+		return sampleRate;
+	}
+}
@@ -0,0 +1,199 @@
+package org.hexiano;
+
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import android.util.Log;
+
+/**
+ * Loads the samples of an instrument on a bounded pool of threads. Whenever a thread is free it takes the sample with
+ * the highest priority, the samples playing the notes of the priority range first and then the samples nearest to it,
+ * so the notes of the current song sound soon after launch. The priority range can change while loading.
+ */
+public class SampleLoader {
+
+	// Loads one sample, called on a thread of the pool and returns when the sample can be played.
+	public interface Task {
+		void load(int rootNote, int resId) throws Exception;
+	}
+
+	// Called on a thread of the pool after each sample which loaded or failed to load.
+	public interface Listener {
+		void onLoadProgress(int loaded, int failed, int total);
+	}
+
+	public static final int MAX_THREADS = 4;
+
+	private final int[] mRootNotes; // the root notes of the samples, ascending
+	private final int[] mResIds;
+	private final boolean[] mStarted;
+	private final boolean[] mLoaded;
+	private final boolean[] mFailed; // the samples whose loading threw, they can't be played
+	private int mLoadedCount;
+	private int mFailedCount;
+	private int mLow = 0, mHigh = 127; // the priority range of notes
+	private Task mTask;
+	private volatile Listener mListener;
+	private ExecutorService mExecutor;
+
+	// sounds are { rootNote, resId } tuples
+	public SampleLoader(List<int[]> sounds, Task task) {
+		int[][] sorted = sounds.toArray(new int[sounds.size()][]);
+		Arrays.sort(sorted, new Comparator<int[]>() {
+			@Override
+			public int compare(int[] x, int[] y) {
+				return x[0] - y[0];
+			}
+		});
+		mRootNotes = new int[sorted.length];
+		mResIds = new int[sorted.length];
+		for (int i = 0; i < sorted.length; i++) {
+			mRootNotes[i] = sorted[i][0];
+			mResIds[i] = sorted[i][1];
+		}
+		mStarted = new boolean[sorted.length];
+		mLoaded = new boolean[sorted.length];
+		mFailed = new boolean[sorted.length];
+		mTask = task;
+	}
+
+	// Starts loading on the given number of threads.
+	public void start(int threads) {
+		threads = Math.max(1, Math.min(Math.min(threads, MAX_THREADS), mRootNotes.length));
+		mExecutor = Executors.newFixedThreadPool(threads);
+		for (int i = 0; i < threads; i++) {
+			mExecutor.execute(mWorker);
+		}
+		mExecutor.shutdown();
+	}
+
+	// Stops loading the samples which weren't started yet.
+	public void cancel() {
+		if (mExecutor != null) {
+			mExecutor.shutdownNow();
+		}
+	}
+
+	private Runnable mWorker = new Runnable() {
+		public void run() {
+			int sample;
+			while ((sample = next()) >= 0 && !Thread.currentThread().isInterrupted()) {
+				boolean success = false;
+				try {
+					mTask.load(mRootNotes[sample], mResIds[sample]);
+					success = true;
+				} catch (InterruptedException e) {
+					return;
+				} catch (Exception e) {
+					Log.e("SampleLoader", "Could not load the sample of " + mRootNotes[sample], e);
+				}
+				int loaded;
+				int failed;
+				synchronized (SampleLoader.this) {
+					if (success) {
+						mLoaded[sample] = true;
+						mLoadedCount++;
+					} else {
+						mFailed[sample] = true;
+						mFailedCount++;
+					}
+					loaded = mLoadedCount;
+					failed = mFailedCount;
+				}
+				Listener listener = mListener;
+				if (listener != null) {
+					listener.onLoadProgress(loaded, failed, mRootNotes.length);
+				}
+			}
+		}
+	};
+
+	// Takes the sample with the highest priority which isn't loading yet, or
+	// returns -1 if all are.
+	private synchronized int next() {
+		int found = -1;
+		int foundDistance = Integer.MAX_VALUE;
+		for (int sample = 0; sample < mRootNotes.length; sample++) {
+			if (!mStarted[sample]) {
+				int distance = getDistance(sample);
+				if (distance < foundDistance) {
+					found = sample;
+					foundDistance = distance;
+				}
+			}
+		}
+		if (found >= 0) {
+			mStarted[found] = true;
+		}
+		return found;
+	}
+
+	// The distance (semitones) of the notes played by the sample to the
+	// priority range, 0 if it plays notes of the range.
+	private int getDistance(int sample) {
+		int low = sample == 0 ? 0 : mRootNotes[sample];
+		int high = sample == mRootNotes.length - 1 ? 127 : mRootNotes[sample + 1] - 1;
+		return Math.max(0, Math.max(mLow - high, low - mHigh));
+	}
+
+	// The sample playing the note, the one of the closest root note below it.
+	private int getSample(int midiNote) {
+		int sample = 0;
+		while (sample < mRootNotes.length - 1 && mRootNotes[sample + 1] <= midiNote) {
+			sample++;
+		}
+		return sample;
+	}
+
+	// Sets the notes whose samples are loaded first.
+	public synchronized void setPriorityRange(int low, int high) {
+		mLow = low;
+		mHigh = high;
+	}
+
+	// Returns true if the samples of all notes from low to high are loaded.
+	public synchronized boolean isLoaded(int low, int high) {
+		if (mRootNotes.length == 0 || low > high) {
+			return true;
+		}
+		for (int sample = getSample(low); sample <= getSample(high); sample++) {
+			if (!mLoaded[sample]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	// Returns true if none of the samples of the notes from low to high is
+	// still loading, they either loaded or failed to load.
+	public synchronized boolean isFinished(int low, int high) {
+		if (mRootNotes.length == 0 || low > high) {
+			return true;
+		}
+		for (int sample = getSample(low); sample <= getSample(high); sample++) {
+			if (!mLoaded[sample] && !mFailed[sample]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public synchronized int getLoadedCount() {
+		return mLoadedCount;
+	}
+
+	public synchronized int getFailedCount() {
+		return mFailedCount;
+	}
+
+	public int getTotal() {
+		return mRootNotes.length;
+	}
+
+	public void setListener(Listener listener) {
+		mListener = listener;
+	}
+}
@@ -0,0 +1,295 @@
+package org.hexiano;
+
+import org.climprpiano.util.MidiInputQueue;
+
+/**
+ * Mixes the voices of a sampled instrument into a mono 16 bit PCM buffer, an alternative to SoundPool with control over
+ * the buffer size and the timing of each note. Every voice resamples its root note sample by linear interpolation,
+ * scales it by the velocity and fades it out with a linear release envelope after its note-off.
+ *
+ * The notes are fed as timestamped events through a {@link MidiInputQueue} and placed at their exact frame in the
+ * buffer being rendered. render doesn't allocate or lock and only uses plain Java, so the mixer also runs without a
+ * device. noteOn and noteOff have to be called from one thread at a time, render from the audio thread.
+ */
+public class SampleMixer {
+
+	public static final int CONTROL_CHANGE = 0xB0; // the status of a control change event
+	public static final int ALL_NOTES_OFF = 123; // the controller releasing all notes
+
+	public static final int DEFAULT_RELEASE_TIME = 150; // the default time (msec) a released voice fades out
+	public static final float DEFAULT_GAIN = 0.5f; // the default gain of a voice played with the maximum velocity
+
+	private final int sampleRate; // the output frames per second
+	private final int maxFrames; // the maximum number of frames rendered at once
+
+	// the samples by their root note, and for each note its root note and the rate to play that at
+	private final short[][] samples = new short[128][];
+	private final float[] sampleRates = new float[128]; // the frames per second of each sample
+	private final int[] rootNotes = new int[128];
+	private final float[] rates = new float[128];
+	private volatile int samplesVersion; // written after the samples changed, read before a voice uses them
+
+	// the voices, a voice is free if its sample is null
+	private final short[][] voiceSamples;
+	private final double[] positions; // the position (frames) in the sample
+	private final double[] increments; // the frames of the sample per output frame
+	private final float[] gains;
+	private final float[] releaseSteps; // the gain lost per frame, 0 while the voice is held
+	private final int[] pitches;
+	private final long[] startOrder; // the order the voices were started in
+	private long nextStart = 1;
+
+	private final MidiInputQueue events = new MidiInputQueue(256);
+	private boolean pending; // true if the last polled event lies after the rendered buffer
+	private long pendingTime;
+	private int pendingStatus, pendingNote, pendingVelocity;
+
+	private final float[] mix; // the mixed frames of the current buffer
+	private volatile float gain = DEFAULT_GAIN;
+	private volatile int releaseFrames;
+
+	// the counters
+	private volatile int voicesInUse;
+	private volatile int stealCount;
+
+	public SampleMixer(int sampleRate, int polyphony, int maxFrames) {
+		this.sampleRate = sampleRate;
+		this.maxFrames = maxFrames;
+		voiceSamples = new short[polyphony][];
+		positions = new double[polyphony];
+		increments = new double[polyphony];
+		gains = new float[polyphony];
+		releaseSteps = new float[polyphony];
+		pitches = new int[polyphony];
+		startOrder = new long[polyphony];
+		mix = new float[maxFrames];
+		setReleaseTime(DEFAULT_RELEASE_TIME);
+		for (int note = 0; note < 128; note++) {
+			rootNotes[note] = -1;
+		}
+	}
+
+	/**
+	 * sets the decoded mono sample of a root note, may be called from any thread while the mixer renders
+	 */
+	public synchronized void setSample(int rootNote, short[] sample, int sampleRate) {
+		samples[rootNote] = sample;
+		sampleRates[rootNote] = sampleRate;
+		samplesVersion++;
+	}
+
+	/**
+	 * sets the root note whose sample plays a note, and the rate it is played at
+	 */
+	public synchronized void setRootNote(int midiNote, int rootNote, float rate) {
+		rootNotes[midiNote] = rootNote;
+		rates[midiNote] = rate;
+		samplesVersion++;
+	}
+
+	/**
+	 * queues a note to start at the given time (nsec of System.nanoTime())
+	 *
+	 * @return false if the queue is full and the note was dropped
+	 */
+	public boolean noteOn(long time, int midiNote, int velocity) {
+		return events.offer(time, MidiInputQueue.NOTE_ON, midiNote, velocity);
+	}
+
+	/**
+	 * queues the release of a note at the given time (nsec)
+	 *
+	 * @return false if the queue is full and the release was dropped
+	 */
+	public boolean noteOff(long time, int midiNote) {
+		return events.offer(time, MidiInputQueue.NOTE_OFF, midiNote, 0);
+	}
+
+	/**
+	 * queues the release of all notes at the given time (nsec)
+	 *
+	 * @return false if the queue is full and the release was dropped
+	 */
+	public boolean allNotesOff(long time) {
+		return events.offer(time, CONTROL_CHANGE, ALL_NOTES_OFF, 0);
+	}
+
+	/**
+	 * renders the next frames into the buffer
+	 *
+	 * @param bufferTime
+	 *            the time (nsec) the first frame will be heard, events before it are played at the first frame
+	 */
+	public void render(short[] buffer, int offset, int frames, long bufferTime) {
+		frames = Math.min(frames, maxFrames);
+		for (int frame = 0; frame < frames; frame++) {
+			mix[frame] = 0;
+		}
+
+		// render up to each event due in this buffer, then apply it
+		int from = 0;
+		while (pending || events.poll()) {
+			if (!pending) {
+				pendingTime = events.getTime();
+				pendingStatus = events.getStatus();
+				pendingNote = events.getData1();
+				pendingVelocity = events.getData2();
+			}
+			long eventFrame = (pendingTime - bufferTime) * sampleRate / 1000000000L;
+			if (eventFrame >= frames) {
+				pending = true;
+				break;
+			}
+			pending = false;
+			int to = (int) Math.max(from, eventFrame);
+			mixVoices(from, to);
+			from = to;
+			if (pendingStatus == CONTROL_CHANGE) {
+				releaseVoices(-1);
+			} else if (pendingStatus == MidiInputQueue.NOTE_ON && pendingVelocity > 0) {
+				startVoice(pendingNote, pendingVelocity);
+			} else {
+				releaseVoices(pendingNote);
+			}
+		}
+		mixVoices(from, frames);
+
+		for (int frame = 0; frame < frames; frame++) {
+			float value = mix[frame];
+			buffer[offset + frame] = (short) (value > 32767 ? 32767 : value < -32768 ? -32768 : value);
+		}
+	}
+
+	// adds the frames of all voices from the frame from (inclusive) to to (exclusive) to the mix
+	private void mixVoices(int from, int to) {
+		if (from >= to) {
+			return;
+		}
+		for (int voice = 0; voice < voiceSamples.length; voice++) {
+			short[] sample = voiceSamples[voice];
+			if (sample == null) {
+				continue;
+			}
+			double position = positions[voice];
+			double increment = increments[voice];
+			float voiceGain = gains[voice];
+			float releaseStep = releaseSteps[voice];
+			int last = sample.length - 1;
+			int frame = from;
+			for (; frame < to; frame++) {
+				int index = (int) position;
+				if (index >= last || voiceGain <= 0) {
+					break;
+				}
+				float fraction = (float) (position - index);
+				float value = sample[index] + (sample[index + 1] - sample[index]) * fraction;
+				mix[frame] += value * voiceGain;
+				position += increment;
+				voiceGain -= releaseStep;
+			}
+			if (frame < to) {
+				voiceSamples[voice] = null;
+				voicesInUse--;
+			} else {
+				positions[voice] = position;
+				gains[voice] = voiceGain;
+			}
+		}
+	}
+
+	// starts a voice playing the note, stealing the oldest if none is free
+	private void startVoice(int midiNote, int velocity) {
+		// the volatile read makes the samples and root notes set by the loading threads visible
+		if (samplesVersion == 0) {
+			return; // nothing is set yet
+		}
+		int rootNote = rootNotes[midiNote];
+		if (rootNote < 0 || samples[rootNote] == null) {
+			return; // the sample isn't loaded yet
+		}
+		releaseVoices(midiNote);
+
+		int found = -1;
+		for (int voice = 0; voice < voiceSamples.length; voice++) {
+			if (voiceSamples[voice] == null) {
+				found = voice;
+				break;
+			}
+			if (found < 0 || startOrder[voice] < startOrder[found]) {
+				found = voice;
+			}
+		}
+		if (voiceSamples[found] != null) {
+			stealCount++;
+		} else {
+			voicesInUse++;
+		}
+		voiceSamples[found] = samples[rootNote];
+		positions[found] = 0;
+		increments[found] = rates[midiNote] * sampleRates[rootNote] / sampleRate;
+		gains[found] = gain * velocity / 128;
+		releaseSteps[found] = 0;
+		pitches[found] = midiNote;
+		startOrder[found] = nextStart++;
+	}
+
+	// lets the held voices of the note fade out, all of them if the note is -1
+	private void releaseVoices(int midiNote) {
+		for (int voice = 0; voice < voiceSamples.length; voice++) {
+			if (voiceSamples[voice] != null && (midiNote < 0 || pitches[voice] == midiNote) && releaseSteps[voice] == 0) {
+				releaseSteps[voice] = gains[voice] / Math.max(1, releaseFrames);
+			}
+		}
+	}
+
+	/**
+	 * @return the output frames per second
+	 */
+	public int getSampleRate() {
+		return sampleRate;
+	}
+
+	/**
+	 * @return the maximum number of frames rendered at once
+	 */
+	public int getMaxFrames() {
+		return maxFrames;
+	}
+
+	/**
+	 * @param gain
+	 *            the gain of a voice played with the maximum velocity
+	 */
+	public void setGain(float gain) {
+		this.gain = gain;
+	}
+
+	/**
+	 * @param releaseTime
+	 *            the time (msec) a released voice fades out
+	 */
+	public void setReleaseTime(int releaseTime) {
+		releaseFrames = (int) ((long) releaseTime * sampleRate / 1000);
+	}
+
+	/**
+	 * @return the number of voices sounding, held or released
+	 */
+	public int getVoicesInUse() {
+		return voicesInUse;
+	}
+
+	/**
+	 * @return the number of voices which were stolen for a new note
+	 */
+	public int getStealCount() {
+		return stealCount;
+	}
+
+	/**
+	 * @return the number of events dropped because the queue was full
+	 */
+	public int getDroppedCount() {
+		return events.getDroppedCount();
+	}
+}
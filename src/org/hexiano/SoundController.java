@@ -1,21 +1,26 @@
 package org.hexiano;
 
-import java.util.HashMap;
+import java.io.IOException;
 import java.util.Map;
 
-import android.annotation.SuppressLint;
 import android.content.Context;
 import android.media.SoundPool;
 
-@SuppressLint("UseSparseArrays")
 public class SoundController {
 
 	Instrument mInstrument;
-	HashMap<Integer, Integer> playedTones;
+	VoiceAllocator mVoices;
+	SampleLoader mLoader;
+	int mPolyphony;
 
 	public SoundController(Context con) {
-		playedTones = new HashMap<Integer, Integer>();
+		this(con, Instrument.POLYPHONY_COUNT);
+	}
+
+	public SoundController(Context con, int polyphony) {
+		mPolyphony = polyphony;
 		loadKeyboard(con);
+		mVoices = new VoiceAllocator(mInstrument, polyphony);
 	}
 
 	protected void loadKeyboard(Context con) {
@@ -23,44 +28,92 @@ public class SoundController {
 
 		mInstrument = null;// (Instrument) getLastNonConfigurationInstance();
 		if (mInstrument == null) {
-			// If no retained audio, load it all up (slow).
-			mInstrument = new PianoInstrument(con);
-			// Redraw whenever a new note is ready.
+			// If no retained audio, load it all up on the SampleLoader.
+			mInstrument = new PianoInstrument(con, mPolyphony);
 			mInstrument.mSoundPool.setOnLoadCompleteListener(new SoundPool.OnLoadCompleteListener() {
 				@Override
 				public void onLoadComplete(SoundPool mSoundPool, int sampleId, int status) {
-					if (mInstrument.sound_load_queue.hasNext()) {
-						int[] tuple = mInstrument.sound_load_queue.next();
-						mInstrument.addSound(tuple[0], tuple[1]);
-					}
+					mInstrument.onLoadComplete(sampleId, status);
+				}
+			});
+			mLoader = new SampleLoader(mInstrument.getSampleBank().getSoundList(), new SampleLoader.Task() {
+				@Override
+				public void load(int rootNote, int resId) throws InterruptedException, IOException {
+					mInstrument.addSound(rootNote, resId);
 				}
 			});
+			mLoader.start(SampleLoader.MAX_THREADS);
 		}
 	}
 
-	public void play(int midiNoteNumber, int velocity) {
-		playedTones.put(midiNoteNumber, mInstrument.play(midiNoteNumber, velocity));
+	// Called from the playback engine and the UI thread, so the voices are
+	// guarded by this.
+	public synchronized void play(int midiNoteNumber, int velocity) {
+		mVoices.noteOn(midiNoteNumber, velocity);
 	}
 
-	public void stop(int midiNoteNumber) {
-		if (playedTones.containsKey(midiNoteNumber)) {
-			mInstrument.stop(playedTones.get(midiNoteNumber));
-			playedTones.remove(midiNoteNumber);
-		}
+	public synchronized void stop(int midiNoteNumber) {
+		mVoices.noteOff(midiNoteNumber);
+	}
+
+	// Plays the note as if it had been played at the given time (nsec of
+	// System.nanoTime()), only a mixer of its own can place it that exactly.
+	public void play(int midiNoteNumber, int velocity, long time) {
+		play(midiNoteNumber, velocity);
+	}
+
+	public void stop(int midiNoteNumber, long time) {
+		stop(midiNoteNumber);
+	}
+
+	public synchronized void stopAll() {
+		mVoices.stopAll();
+	}
+
+	// Stops all notes and the loading, the controller can't be used
+	// afterwards.
+	public void release() {
+		mLoader.cancel();
+		stopAll();
+		mInstrument.release();
+	}
+
+	// Loads the samples of the notes from low to high first.
+	public void setPriorityRange(int low, int high) {
+		mLoader.setPriorityRange(low, high);
+	}
+
+	// Returns true if the notes from low to high can be played.
+	public boolean isLoaded(int low, int high) {
+		return mLoader.isLoaded(low, high);
+	}
+
+	// Returns true if no sample of the notes from low to high is still
+	// loading, some may have failed to load.
+	public boolean isFinished(int low, int high) {
+		return mLoader.isFinished(low, high);
+	}
+
+	public SampleLoader getLoader() {
+		return mLoader;
 	}
 
 	// plays all the notes with the given velocity
 	// notes which are not contained are stopped to play
-	public void setNotes(Map<Integer, Integer> notes) {
-		for (int playedTone : playedTones.keySet().toArray(new Integer[] {})) {
-			if (!notes.containsKey(playedTone)) {
-				stop(playedTone);
+	public synchronized void setNotes(Map<Integer, Integer> notes) {
+		for (int note = 0; note < 128; note++) {
+			if (mVoices.isHeld(note) && !notes.containsKey(note)) {
+				stop(note);
 			}
 		}
 		for (int note : notes.keySet()) {
-			if (!playedTones.containsKey(note)) {
+			if (!mVoices.isHeld(note)) {
 				play(note, notes.get(note));
 			}
 		}
 	}
+
+	public VoiceAllocator getVoiceAllocator() {
+		return mVoices;
+	}
 }
@@ -0,0 +1,264 @@
+package org.hexiano;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+/**
+ * Keeps track of the sounding voices of an {@link Instrument}, one per played stream. At most mPolyphony voices sound
+ * at the same time; when a note is played while all voices are in use, a voice is stolen by the {@link StealPolicy}.
+ *
+ * A released voice isn't stopped right away, it keeps sounding quieter for mReleaseTime milliseconds, so retriggered
+ * and short notes don't cut off abruptly and the RELEASED_FIRST policy has a released voice to take. The release ends
+ * on time even if no other note follows: the stop is scheduled on the main thread for the earliest pending release.
+ */
+public class VoiceAllocator {
+
+	public enum StealPolicy {
+		OLDEST, QUIETEST, RELEASED_FIRST
+	}
+
+	public static final int DEFAULT_RELEASE_TIME = 300; // the default time (msec) a released voice keeps sounding
+	public static final float RELEASE_GAIN = 0.25f; // the volume of a released voice relative to its played volume
+
+	private Instrument mInstrument;
+	private int mPolyphony;
+	private StealPolicy mStealPolicy = StealPolicy.RELEASED_FIRST;
+	private int mReleaseTime = DEFAULT_RELEASE_TIME;
+
+	// the voices, a voice is free if its stream is 0
+	private int[] mStreams;
+	private int[] mPitches;
+	private float[] mVolumes; // the volume the voice currently sounds with
+	private long[] mStartOrder; // the order the voices were started in
+	private long[] mReleaseTimes; // the uptime (msec) the voice was released, or 0 while it is held
+	private long mNextStart = 1;
+	private Handler mHandler = new Handler(Looper.getMainLooper()); // runs mReaper
+	private long mReapTime; // the uptime (msec) mReaper is scheduled for, or 0 if it isn't
+
+	// the counters
+	private int mVoicesInUse;
+	private int mStealCount;
+
+	public VoiceAllocator(Instrument instrument, int polyphony) {
+		mInstrument = instrument;
+		mPolyphony = Math.max(1, polyphony);
+		mStreams = new int[mPolyphony];
+		mPitches = new int[mPolyphony];
+		mVolumes = new float[mPolyphony];
+		mStartOrder = new long[mPolyphony];
+		mReleaseTimes = new long[mPolyphony];
+	}
+
+	/**
+	 * plays a note on a free voice, stealing one if all are in use. A voice still holding the same pitch is released.
+	 */
+	public synchronized void noteOn(int midiNoteNumber, int velocity) {
+		long now = SystemClock.uptimeMillis();
+		reapReleased(now);
+		release(midiNoteNumber, now);
+
+		if (!mInstrument.isPlayable(midiNoteNumber)) {
+			// the sample isn't loaded yet, don't cut off a voice for nothing
+			return;
+		}
+
+		// a voice is stolen before playing, else the sound pool would pick the stream to stop itself
+		int voice = findFreeVoice();
+		boolean stolen = voice < 0;
+		if (stolen) {
+			voice = findVoiceToSteal();
+			stopVoice(voice);
+		}
+
+		float volume = mInstrument.getVolume(velocity);
+		int stream = mInstrument.play(midiNoteNumber, velocity);
+		if (stream <= 0) {
+			// the sound pool refused the stream
+			return;
+		}
+		if (stolen) {
+			mStealCount++;
+		}
+		mStreams[voice] = stream;
+		mPitches[voice] = midiNoteNumber;
+		mVolumes[voice] = volume;
+		mStartOrder[voice] = mNextStart++;
+		mReleaseTimes[voice] = 0;
+		mVoicesInUse++;
+	}
+
+	/**
+	 * releases the held voices of the given pitch
+	 */
+	public synchronized void noteOff(int midiNoteNumber) {
+		long now = SystemClock.uptimeMillis();
+		release(midiNoteNumber, now);
+		reapReleased(now);
+	}
+
+	/**
+	 * stops all voices at once
+	 */
+	public synchronized void stopAll() {
+		for (int voice = 0; voice < mPolyphony; voice++) {
+			stopVoice(voice);
+		}
+		mHandler.removeCallbacks(mReaper);
+		mReapTime = 0;
+	}
+
+	/**
+	 * @return true if a voice holds the given pitch and wasn't released yet
+	 */
+	public synchronized boolean isHeld(int midiNoteNumber) {
+		for (int voice = 0; voice < mPolyphony; voice++) {
+			if (mStreams[voice] != 0 && mPitches[voice] == midiNoteNumber && mReleaseTimes[voice] == 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void release(int midiNoteNumber, long now) {
+		for (int voice = 0; voice < mPolyphony; voice++) {
+			if (mStreams[voice] != 0 && mPitches[voice] == midiNoteNumber && mReleaseTimes[voice] == 0) {
+				mReleaseTimes[voice] = now;
+				mVolumes[voice] *= RELEASE_GAIN;
+				mInstrument.setVolume(mStreams[voice], mVolumes[voice]);
+				scheduleReap(now + mReleaseTime);
+			}
+		}
+	}
+
+	// lets mReaper run at the given time, unless it already runs earlier
+	private void scheduleReap(long time) {
+		if (mReapTime == 0 || time < mReapTime) {
+			mHandler.removeCallbacks(mReaper);
+			mReapTime = time;
+			mHandler.postAtTime(mReaper, time);
+		}
+	}
+
+	// stops the voices whose release is over and schedules itself for the next one
+	private Runnable mReaper = new Runnable() {
+		public void run() {
+			synchronized (VoiceAllocator.this) {
+				long now = SystemClock.uptimeMillis();
+				mReapTime = 0;
+				reapReleased(now);
+				long next = 0;
+				for (int voice = 0; voice < mPolyphony; voice++) {
+					if (mStreams[voice] != 0 && mReleaseTimes[voice] != 0) {
+						long end = mReleaseTimes[voice] + mReleaseTime;
+						next = next == 0 ? end : Math.min(next, end);
+					}
+				}
+				if (next != 0) {
+					scheduleReap(next);
+				}
+			}
+		}
+	};
+
+	// stops the released voices whose release time is over
+	private void reapReleased(long now) {
+		for (int voice = 0; voice < mPolyphony; voice++) {
+			if (mStreams[voice] != 0 && mReleaseTimes[voice] != 0 && now - mReleaseTimes[voice] >= mReleaseTime) {
+				stopVoice(voice);
+			}
+		}
+	}
+
+	private void stopVoice(int voice) {
+		if (mStreams[voice] != 0) {
+			mInstrument.stop(mStreams[voice]);
+			mStreams[voice] = 0;
+			mVoicesInUse--;
+		}
+	}
+
+	private int findFreeVoice() {
+		for (int voice = 0; voice < mPolyphony; voice++) {
+			if (mStreams[voice] == 0) {
+				return voice;
+			}
+		}
+		return -1;
+	}
+
+	private int findVoiceToSteal() {
+		int found = 0;
+		for (int voice = 1; voice < mPolyphony; voice++) {
+			if (isBetterToSteal(voice, found)) {
+				found = voice;
+			}
+		}
+		return found;
+	}
+
+	// true if voice1 should rather be stolen than voice2
+	private boolean isBetterToSteal(int voice1, int voice2) {
+		switch (mStealPolicy) {
+		case QUIETEST:
+			if (mVolumes[voice1] != mVolumes[voice2]) {
+				return mVolumes[voice1] < mVolumes[voice2];
+			}
+			break;
+		case RELEASED_FIRST:
+			boolean released1 = mReleaseTimes[voice1] != 0;
+			boolean released2 = mReleaseTimes[voice2] != 0;
+			if (released1 != released2) {
+				return released1;
+			}
+			break;
+		default:
+			break;
+		}
+		return mStartOrder[voice1] < mStartOrder[voice2];
+	}
+
+	/**
+	 * @return the number of voices sounding, held or released
+	 */
+	public synchronized int getVoicesInUse() {
+		return mVoicesInUse;
+	}
+
+	/**
+	 * @return the number of voices which were stolen for a new note
+	 */
+	public synchronized int getStealCount() {
+		return mStealCount;
+	}
+
+	/**
+	 * @return the maximum number of voices sounding at the same time
+	 */
+	public int getPolyphony() {
+		return mPolyphony;
+	}
+
+	/**
+	 * @param stealPolicy
+	 *            the policy choosing the voice to steal when all are in use
+	 */
+	public synchronized void setStealPolicy(StealPolicy stealPolicy) {
+		mStealPolicy = stealPolicy;
+	}
+
+	/**
+	 * @return the policy choosing the voice to steal when all are in use
+	 */
+	public synchronized StealPolicy getStealPolicy() {
+		return mStealPolicy;
+	}
+
+	/**
+	 * @param releaseTime
+	 *            the time (msec) a released voice keeps sounding, 0 stops it right away
+	 */
+	public synchronized void setReleaseTime(int releaseTime) {
+		mReleaseTime = Math.max(0, releaseTime);
+	}
+}
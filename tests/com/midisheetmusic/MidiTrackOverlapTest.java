@@ -0,0 +1,179 @@
+/*
+ * Copyright (c) 2007-2011 Madhav Vaidyanathan
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License version 2.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ */
+
+
+
+package com.midisheetmusic;
+
+import java.io.*;
+import java.lang.reflect.Field;
+import java.util.*;
+
+
+
+/** @class MidiTrackOverlapTest
+ * Checks that MidiTrack pairs the NoteOff events with the same notes as
+ * the backward search over the note list, which MidiTrack still uses
+ * after the track is created.
+ *
+ * The reference track is an empty MidiTrack, filled with AddNote() and
+ * NoteOff() calls for the same events, so every NoteOff searches the
+ * note list backwards.
+ *
+ * - overlap: 500k notes, each overlapping the next 2000.  Each note has
+ *   its own channel and number among the next 2048, so every NoteOff
+ *   searches 2000 notes back.
+ * - random: notes on a few numbers, stacked several deep, with notes
+ *   ending at their own start time and NoteOffs without a note.
+ * - the tracks of every song in the assets directory (the first argument,
+ *   "assets" by default).
+ *
+ * Exits with status 1 if any note differs.
+ */
+public class MidiTrackOverlapTest {
+    static final int NumNotes = 500000;
+    static final int Overlap = 2000;
+    static final int Keys = 16 * 128;
+
+    /** Return the events of the overlapping notes.  Note i starts at
+     *  pulse i and ends at pulse i + Overlap.
+     */
+    static MidiEventBuffer OverlapEvents() {
+        MidiEventBuffer events = new MidiEventBuffer(NumNotes * 2);
+        for (int i = 0; i < NumNotes + Overlap; i++) {
+            int off = i - Overlap;
+            if (off >= 0) {
+                int key = off % Keys;
+                events.add(i, 0x80 | (key / 128), key % 128, 0, true);
+            }
+            if (i < NumNotes) {
+                int key = i % Keys;
+                events.add(i, 0x90 | (key / 128), key % 128, 100, true);
+            }
+        }
+        return events;
+    }
+
+    /** Return random events on a few channels and numbers.  A NoteOn with
+     *  velocity 0 is used for some of the NoteOffs.
+     */
+    static MidiEventBuffer RandomEvents(long seed) {
+        Random random = new Random(seed);
+        MidiEventBuffer events = new MidiEventBuffer(NumNotes);
+        int time = 0;
+        for (int i = 0; i < NumNotes; i++) {
+            time += random.nextInt(3);
+            int channel = random.nextInt(2);
+            int number = 60 + random.nextInt(4);
+            if (random.nextInt(100) < 52) {
+                events.add(time, 0x90 | channel, number, 1 + random.nextInt(127), true);
+            }
+            else if (random.nextBoolean()) {
+                events.add(time, 0x80 | channel, number, 0, true);
+            }
+            else {
+                events.add(time, 0x90 | channel, number, 0, true);
+            }
+        }
+        return events;
+    }
+
+    /** Create the reference track, using the backward search for every NoteOff */
+    static MidiTrack ReferenceTrack(MidiEventBuffer events) {
+        MidiTrack track = new MidiTrack(0);
+        for (int i = 0; i < events.size(); i++) {
+            byte eventflag = events.getEventFlag(i);
+            if (eventflag == MidiFile.EventNoteOn && events.getData2(i) > 0) {
+                track.AddNote(new MidiNote(events.getStartTime(i), events.getChannel(i),
+                                           events.getData1(i), 0));
+            }
+            else if (eventflag == MidiFile.EventNoteOn || eventflag == MidiFile.EventNoteOff) {
+                track.NoteOff(events.getChannel(i), events.getData1(i), events.getStartTime(i));
+            }
+        }
+        return track;
+    }
+
+    /** Compare the notes of the two tracks.  Return the number of notes that differ */
+    static int Compare(String name, MidiTrack track, MidiTrack reference) {
+        ArrayList<MidiNote> notes = track.getNotes();
+        ArrayList<MidiNote> expected = reference.getNotes();
+        if (notes.size() != expected.size()) {
+            System.out.println(name + ": " + notes.size() + " notes, expected " + expected.size());
+            return Math.max(1, Math.abs(notes.size() - expected.size()));
+        }
+        int differ = 0;
+        for (int i = 0; i < notes.size(); i++) {
+            MidiNote n = notes.get(i);
+            MidiNote e = expected.get(i);
+            if (n.getStartTime() != e.getStartTime() || n.getChannel() != e.getChannel() ||
+                n.getNumber() != e.getNumber() || n.getDuration() != e.getDuration()) {
+                if (differ == 0) {
+                    System.out.println(name + ": note " + i + " is " + n + ", expected " + e);
+                }
+                differ++;
+            }
+        }
+        return differ;
+    }
+
+    static int Check(String name, MidiEventBuffer events) {
+        long start = System.nanoTime();
+        MidiTrack track = new MidiTrack(events, 0);
+        long open = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        MidiTrack reference = ReferenceTrack(events);
+        long backward = System.nanoTime() - start;
+
+        int differ = Compare(name, track, reference);
+        System.out.printf("%s: %d notes, %d differ, open note stacks %d ms, backward search %d ms%n",
+                          name, track.getNotes().size(), differ,
+                          open / 1000000, backward / 1000000);
+        return differ;
+    }
+
+    /** Check the tracks of every song in the directory.  The events of
+     *  the tracks are not kept outside of MidiFile, so they are taken
+     *  from its private field.
+     */
+    @SuppressWarnings("unchecked")
+    static int CheckSongs(File dir) throws Exception {
+        Field field = MidiFile.class.getDeclaredField("allevents");
+        field.setAccessible(true);
+        int differ = 0;
+        int songs = 0;
+        for (File file : TestSongs.Files(dir)) {
+            MidiFile midifile = new MidiFile(TestSongs.Read(file), file.getName());
+            ArrayList<MidiEventBuffer> allevents = (ArrayList<MidiEventBuffer>)field.get(midifile);
+            for (MidiEventBuffer events : allevents) {
+                differ += Compare(file.getName(), new MidiTrack(events, 0), ReferenceTrack(events));
+            }
+            songs++;
+        }
+        System.out.println("songs: " + songs + " songs, " + differ + " notes differ");
+        return differ;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int differ = Check("overlap", OverlapEvents());
+        for (long seed = 1; seed <= 3; seed++) {
+            differ += Check("random " + seed, RandomEvents(seed));
+        }
+        differ += CheckSongs(TestSongs.Directory(args));
+        if (differ != 0) {
+            System.out.println("FAILED");
+            System.exit(1);
+        }
+        System.out.println("OK");
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2007-2011 Madhav Vaidyanathan
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License version 2.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ */
+
+
+
+package com.midisheetmusic;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+
+
+/** @class ParseAssetsBenchmark
+ * Parses all the songs in the assets directory (the first argument,
+ * "assets" by default) into MidiFiles, and prints the time per pass
+ * over all songs.  The songs are parsed from three kinds of buffers:
+ *
+ * - heap: a byte[], as in MidiFile(byte[], String)
+ * - direct: a direct ByteBuffer
+ * - mapped: the file mapped into memory, as FileUri.getBuffer does
+ *
+ * Before timing, the note table and tempo map of every song are checked
+ * to be the same for the three buffers.  Exits with status 1 if not.
+ */
+public class ParseAssetsBenchmark {
+    static final int WarmupPasses = 100;
+    static final int Passes = 50;
+
+    /** Parse every buffer once.  Return the number of notes, so the
+     *  parsing can't be left out.
+     */
+    static int Parse(ByteBuffer[] buffers, File[] files) {
+        int notes = 0;
+        for (int i = 0; i < buffers.length; i++) {
+            MidiFile midifile = new MidiFile(buffers[i].duplicate(), files[i].getName());
+            notes += midifile.getNoteTable().size();
+        }
+        return notes;
+    }
+
+    static void Time(String name, ByteBuffer[] buffers, File[] files) {
+        int notes = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < Passes; i++) {
+            notes = Parse(buffers, files);
+        }
+        long elapsed = System.nanoTime() - start;
+        System.out.printf("%-6s: %.2f ms per pass over %d songs, %d notes%n",
+                          name, elapsed / 1e6 / Passes, files.length, notes);
+    }
+
+    public static void main(String[] args) throws IOException {
+        File[] files = TestSongs.Files(TestSongs.Directory(args));
+        ByteBuffer[] heap = new ByteBuffer[files.length];
+        ByteBuffer[] direct = new ByteBuffer[files.length];
+        ByteBuffer[] mapped = new ByteBuffer[files.length];
+        for (int i = 0; i < files.length; i++) {
+            byte[] data = TestSongs.Read(files[i]);
+            heap[i] = ByteBuffer.wrap(data);
+            direct[i] = ByteBuffer.allocateDirect(data.length);
+            direct[i].put(data).flip();
+            FileInputStream in = new FileInputStream(files[i]);
+            try {
+                FileChannel channel = in.getChannel();
+                mapped[i] = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+            finally {
+                in.close();
+            }
+        }
+
+        int differ = 0;
+        for (int i = 0; i < files.length; i++) {
+            String name = files[i].getName();
+            MidiFile expected = new MidiFile(heap[i].duplicate(), name);
+            MidiFile[] others = { new MidiFile(direct[i].duplicate(), name),
+                                  new MidiFile(mapped[i].duplicate(), name) };
+            for (MidiFile other : others) {
+                if (!other.getNoteTable().toString().equals(expected.getNoteTable().toString()) ||
+                    !other.getTempoMap().toString().equals(expected.getTempoMap().toString())) {
+                    System.out.println(name + ": the buffers give different songs");
+                    differ++;
+                }
+            }
+        }
+        if (differ != 0) {
+            System.out.println("FAILED");
+            System.exit(1);
+        }
+
+        for (int i = 0; i < WarmupPasses; i++) {
+            Parse(heap, files);
+            Parse(direct, files);
+            Parse(mapped, files);
+        }
+        Time("heap", heap, files);
+        Time("direct", direct, files);
+        Time("mapped", mapped, files);
+    }
+}
@@ -0,0 +1,58 @@
+/*
+ * Copyright (c) 2007-2011 Madhav Vaidyanathan
+ *
+ *  This program is free software; you can redistribute it and/or modify
+ *  it under the terms of the GNU General Public License version 2.
+ *
+ *  This program is distributed in the hope that it will be useful,
+ *  but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *  MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *  GNU General Public License for more details.
+ */
+
+
+
+package com.midisheetmusic;
+
+import java.io.*;
+import java.util.*;
+
+
+
+/** @class TestSongs
+ * The Midi files in the assets directory, for the tests and benchmarks.
+ */
+public class TestSongs {
+
+    /** Return the directory given as the first argument, or "assets" */
+    public static File Directory(String[] args) {
+        return new File(args.length > 0 ? args[0] : "assets");
+    }
+
+    /** Return the .mid files in the directory, sorted by name */
+    public static File[] Files(File dir) throws IOException {
+        File[] files = dir.listFiles(new FilenameFilter() {
+            public boolean accept(File d, String name) {
+                return name.endsWith(".mid");
+            }
+        });
+        if (files == null || files.length == 0) {
+            throw new FileNotFoundException("No .mid files in " + dir.getPath());
+        }
+        Arrays.sort(files);
+        return files;
+    }
+
+    /** Return the contents of the file */
+    public static byte[] Read(File file) throws IOException {
+        byte[] data = new byte[(int)file.length()];
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            in.readFully(data);
+        }
+        finally {
+            in.close();
+        }
+        return data;
+    }
+}
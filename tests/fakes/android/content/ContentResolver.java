@@ -0,0 +1,30 @@
+package android.content;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.database.ContentObserver;
+import android.net.Uri;
+
+/**
+ * Stands in for android.content.ContentResolver on a desktop JVM. notifyChange calls the observers right away on the
+ * calling thread.
+ */
+public class ContentResolver {
+
+	private List<ContentObserver> observers = new ArrayList<ContentObserver>();
+
+	public void registerContentObserver(Uri uri, boolean notifyForDescendents, ContentObserver observer) {
+		observers.add(observer);
+	}
+
+	public void unregisterContentObserver(ContentObserver observer) {
+		observers.remove(observer);
+	}
+
+	public void notifyChange(Uri uri, ContentObserver observer) {
+		for (ContentObserver o : observers) {
+			o.onChange(false);
+		}
+	}
+}
@@ -0,0 +1,32 @@
+package android.content;
+
+import android.content.res.Resources;
+
+/**
+ * Stands in for android.content.Context on a desktop JVM, it only hands out the services given to it.
+ */
+public class Context {
+
+	public static final String AUDIO_SERVICE = "audio";
+
+	private Object audioService;
+	private ContentResolver contentResolver = new ContentResolver();
+	private Resources resources;
+
+	public Context(Object audioService, Resources resources) {
+		this.audioService = audioService;
+		this.resources = resources;
+	}
+
+	public Object getSystemService(String name) {
+		return AUDIO_SERVICE.equals(name) ? audioService : null;
+	}
+
+	public ContentResolver getContentResolver() {
+		return contentResolver;
+	}
+
+	public Resources getResources() {
+		return resources;
+	}
+}
@@ -0,0 +1,24 @@
+package android.content.res;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Stands in for android.content.res.Resources on a desktop JVM, with only the int arrays put into it.
+ */
+public class Resources {
+
+	private Map<Integer, int[]> intArrays = new HashMap<Integer, int[]>();
+
+	public void putIntArray(int id, int[] array) {
+		intArrays.put(id, array);
+	}
+
+	public int[] getIntArray(int id) {
+		return intArrays.get(id);
+	}
+
+	public TypedArray obtainTypedArray(int id) {
+		return new TypedArray(intArrays.get(id));
+	}
+}
@@ -0,0 +1,24 @@
+package android.content.res;
+
+/**
+ * Stands in for android.content.res.TypedArray on a desktop JVM, an array of resource ids.
+ */
+public class TypedArray {
+
+	private int[] resIds;
+
+	TypedArray(int[] resIds) {
+		this.resIds = resIds;
+	}
+
+	public int length() {
+		return resIds.length;
+	}
+
+	public int getResourceId(int index, int defValue) {
+		return index < resIds.length ? resIds[index] : defValue;
+	}
+
+	public void recycle() {
+	}
+}
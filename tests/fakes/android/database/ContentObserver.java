@@ -0,0 +1,15 @@
+package android.database;
+
+import android.os.Handler;
+
+/**
+ * Stands in for android.database.ContentObserver on a desktop JVM.
+ */
+public abstract class ContentObserver {
+
+	public ContentObserver(Handler handler) {
+	}
+
+	public void onChange(boolean selfChange) {
+	}
+}
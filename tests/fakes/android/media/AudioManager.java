@@ -0,0 +1,39 @@
+package android.media;
+
+/**
+ * Stands in for android.media.AudioManager on a desktop JVM. The stream volume is set by the test, and the calls which
+ * are binder calls on a device are counted.
+ */
+public class AudioManager {
+
+	public static final int STREAM_MUSIC = 3;
+
+	private volatile int streamVolume;
+	private int streamMaxVolume;
+	private volatile int calls;
+
+	public AudioManager(int streamVolume, int streamMaxVolume) {
+		this.streamVolume = streamVolume;
+		this.streamMaxVolume = streamMaxVolume;
+	}
+
+	public int getStreamVolume(int streamType) {
+		calls++;
+		return streamVolume;
+	}
+
+	public int getStreamMaxVolume(int streamType) {
+		calls++;
+		return streamMaxVolume;
+	}
+
+	public void setStreamVolume(int streamType, int index, int flags) {
+		calls++;
+		streamVolume = index;
+	}
+
+	// the number of calls which would have been binder calls
+	public int getCalls() {
+		return calls;
+	}
+}
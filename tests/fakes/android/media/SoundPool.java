@@ -0,0 +1,39 @@
+package android.media;
+
+import android.content.Context;
+
+/**
+ * Stands in for android.media.SoundPool on a desktop JVM. It plays nothing, load hands out the sample ids 1, 2, 3...
+ * and play remembers the volume of the last stream.
+ */
+public class SoundPool {
+
+	private int nextSampleId = 1;
+	private int nextStreamId = 1;
+	private volatile float lastVolume;
+
+	public SoundPool(int maxStreams, int streamType, int srcQuality) {
+	}
+
+	public synchronized int load(Context context, int resId, int priority) {
+		return nextSampleId++;
+	}
+
+	public int play(int soundID, float leftVolume, float rightVolume, int priority, int loop, float rate) {
+		lastVolume = leftVolume;
+		return nextStreamId++;
+	}
+
+	public void stop(int streamID) {
+	}
+
+	public void setVolume(int streamID, float leftVolume, float rightVolume) {
+	}
+
+	public void release() {
+	}
+
+	public float getLastVolume() {
+		return lastVolume;
+	}
+}
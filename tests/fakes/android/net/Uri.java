@@ -0,0 +1,22 @@
+package android.net;
+
+/**
+ * Stands in for android.net.Uri on a desktop JVM.
+ */
+public class Uri {
+
+	private String uri;
+
+	private Uri(String uri) {
+		this.uri = uri;
+	}
+
+	public static Uri parse(String uriString) {
+		return new Uri(uriString);
+	}
+
+	@Override
+	public String toString() {
+		return uri;
+	}
+}
@@ -0,0 +1,17 @@
+package android.os;
+
+/**
+ * Stands in for android.os.Handler on a desktop JVM. Nothing posted to it ever runs.
+ */
+public class Handler {
+
+	public Handler(Looper looper) {
+	}
+
+	public boolean postAtTime(Runnable r, long uptimeMillis) {
+		return true;
+	}
+
+	public void removeCallbacks(Runnable r) {
+	}
+}
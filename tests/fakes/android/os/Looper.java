@@ -0,0 +1,11 @@
+package android.os;
+
+/**
+ * Stands in for android.os.Looper on a desktop JVM, there is no main looper.
+ */
+public class Looper {
+
+	public static Looper getMainLooper() {
+		return null;
+	}
+}
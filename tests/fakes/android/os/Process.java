@@ -0,0 +1,12 @@
+package android.os;
+
+/**
+ * Stands in for android.os.Process on a desktop JVM, where the thread priorities of Android don't exist.
+ */
+public class Process {
+
+	public static final int THREAD_PRIORITY_URGENT_AUDIO = -19;
+
+	public static void setThreadPriority(int priority) {
+	}
+}
@@ -0,0 +1,13 @@
+package android.provider;
+
+import android.net.Uri;
+
+/**
+ * Stands in for android.provider.Settings on a desktop JVM.
+ */
+public class Settings {
+
+	public static class System {
+		public static final Uri CONTENT_URI = Uri.parse("content://settings/system");
+	}
+}
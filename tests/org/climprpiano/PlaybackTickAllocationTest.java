@@ -0,0 +1,158 @@
+package org.climprpiano;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+
+import org.climprpiano.PianoManager.PlayState;
+import org.climprpiano.util.MidiInputQueue;
+import org.hexiano.SoundController;
+
+import android.content.Context;
+
+import com.midisheetmusic.MidiFile;
+import com.midisheetmusic.TestSongs;
+
+/**
+ * Checks that the ticks of the playback engine don't allocate once warmed up. The engine plays the song with the most
+ * notes in the assets directory (the first argument, "assets" by default) at double speed, and starts it again
+ * whenever it ended. Meanwhile key presses and releases are queued as the MIDI driver does. The bytes allocated by
+ * the engine thread are counted over several seconds after a warm-up.
+ *
+ * The sound controller and the listener only count their calls. The engine needs android.os.Process, and the sound
+ * controller android.os.Handler and Looper, which are replaced by the fakes in tests/fakes on a desktop JVM. Exits with
+ * status 1 if the engine thread allocated or didn't tick.
+ */
+public class PlaybackTickAllocationTest {
+
+	static final int WARMUP_MSEC = 10000; // long enough for the JIT to finish with the engine, a recompile may allocate
+	static final int MEASURE_MSEC = 5000;
+	static final int KEY_INTERVAL = 5; // the time (msec) between two key events
+
+	/**
+	 * counts the notes instead of playing them
+	 */
+	static class CountingSoundController extends SoundController {
+		volatile int played;
+		volatile int stopped;
+
+		CountingSoundController() {
+			super(null, 16);
+		}
+
+		@Override
+		protected void loadKeyboard(Context con) {
+		}
+
+		@Override
+		public void play(int midiNoteNumber, int velocity, long time) {
+			played++;
+		}
+
+		@Override
+		public void stop(int midiNoteNumber, long time) {
+			stopped++;
+		}
+
+		@Override
+		public synchronized void play(int midiNoteNumber, int velocity) {
+			played++;
+		}
+
+		@Override
+		public synchronized void stop(int midiNoteNumber) {
+			stopped++;
+		}
+	}
+
+	/**
+	 * counts the calls of the engine
+	 */
+	static class CountingListener implements PlaybackEngine.Listener {
+		volatile int positions;
+		volatile int keyEvents;
+
+		public void onPositionChanged(double pulseTime) {
+			positions++;
+		}
+
+		public void onPlayStateChanged(PlayState playState) {
+		}
+
+		public void onKeyEvent(int midiNote, int velocity, long time, double pulseTime) {
+			keyEvents++;
+		}
+
+		public void onKeyStatesChanged() {
+		}
+	}
+
+	// the song of the directory with the most notes
+	static MidiFile largestSong(File dir) throws Exception {
+		MidiFile largest = null;
+		for (File file : TestSongs.Files(dir)) {
+			MidiFile midifile = new MidiFile(TestSongs.Read(file), file.getName());
+			if (largest == null || midifile.getNoteTable().size() > largest.getNoteTable().size()) {
+				largest = midifile;
+			}
+		}
+		return largest;
+	}
+
+	static Thread findThread(String name) {
+		for (Thread thread : Thread.getAllStackTraces().keySet()) {
+			if (thread.getName().equals(name)) {
+				return thread;
+			}
+		}
+		return null;
+	}
+
+	// plays the song for the given time, starting it again when it ended, and presses a key every few msec
+	static void play(PlaybackEngine engine, long msec) throws InterruptedException {
+		long end = System.nanoTime() + msec * 1000000L;
+		int key = 0;
+		while (System.nanoTime() < end) {
+			if (engine.getPlayState() == PlayState.STOP) {
+				engine.seek(0);
+				engine.play();
+			}
+			int note = 48 + key / 2 % 24;
+			int status = key % 2 == 0 ? MidiInputQueue.NOTE_ON : MidiInputQueue.NOTE_OFF;
+			engine.offerInput(System.nanoTime(), status, note, key % 2 == 0 ? 100 : 0);
+			key++;
+			Thread.sleep(KEY_INTERVAL);
+		}
+	}
+
+	public static void main(String[] args) throws Exception {
+		MidiFile midifile = largestSong(TestSongs.Directory(args));
+		CountingSoundController soundController = new CountingSoundController();
+		CountingListener listener = new CountingListener();
+		PlaybackEngine engine = new PlaybackEngine(soundController, listener);
+		engine.setSong(midifile);
+		engine.setPlaySpeed(2);
+		engine.start();
+		Thread thread = findThread("PlaybackEngine");
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+		play(engine, WARMUP_MSEC);
+		int positions = listener.positions;
+		int played = soundController.played;
+		int keyEvents = listener.keyEvents;
+		long allocated = threads.getThreadAllocatedBytes(thread.getId());
+		play(engine, MEASURE_MSEC);
+		allocated = threads.getThreadAllocatedBytes(thread.getId()) - allocated;
+		positions = listener.positions - positions;
+		played = soundController.played - played;
+		keyEvents = listener.keyEvents - keyEvents;
+		engine.quit();
+		thread.join();
+
+		System.out.printf("%s: %d ticks, %d notes played, %d key events, %d bytes allocated%n",
+				midifile.getFileName(), positions, played, keyEvents, allocated);
+		if (allocated != 0 || positions == 0 || played == 0 || keyEvents == 0) {
+			System.out.println("FAILED");
+			System.exit(1);
+		}
+	}
+}
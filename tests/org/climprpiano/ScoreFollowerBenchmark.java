@@ -0,0 +1,270 @@
+package org.climprpiano;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Random;
+
+import com.midisheetmusic.MidiFile;
+import com.midisheetmusic.NoteTable;
+import com.midisheetmusic.TempoMap;
+import com.midisheetmusic.TestSongs;
+
+/**
+ * Replays key streams against the songs in the assets directory (the first argument, "assets" by default) through the
+ * ScoreFollower, and prints the time per key press.
+ *
+ * Two key streams are made from every song:
+ * - exact: every note is pressed at its start, each press must match its own note
+ * - played: a seeded random player skips some notes, presses the others up to 120 ms early or late and presses some
+ * wrong keys
+ *
+ * The played stream is also replayed through a linear matcher, which scans the whole note table for every press as
+ * the old updatePlaying did. After seeking to many points of the song, every key is pressed at that point, and the
+ * following part of the stream is replayed. Both matchers must match the same
+ * notes. Exits with status 1 if any press differs.
+ */
+public class ScoreFollowerBenchmark {
+
+	static final int WARMUP_PASSES = 20;
+	static final int PASSES = 50;
+	static final int SEEK_STEP = 10; // a seek before every tenth press of the played stream
+	static final int SEEK_PRESSES = 100; // the presses replayed after each seek
+
+	/**
+	 * a key stream, sorted by time
+	 */
+	static class KeyStream {
+		int size;
+		int[] pitches;
+		double[] pulseTimes;
+		int[] notes; // the note played with each press, or -1 for a wrong key
+
+		KeyStream(int capacity) {
+			pitches = new int[capacity];
+			pulseTimes = new double[capacity];
+			notes = new int[capacity];
+		}
+
+		void add(int pitch, double pulseTime, int note) {
+			pitches[size] = pitch;
+			pulseTimes[size] = pulseTime;
+			notes[size] = note;
+			size++;
+		}
+	}
+
+	static KeyStream exactStream(NoteTable noteTable) {
+		KeyStream stream = new KeyStream(noteTable.size());
+		for (int note = 0; note < noteTable.size(); note++) {
+			stream.add(noteTable.getNumber(note), noteTable.getStartTime(note), note);
+		}
+		return stream;
+	}
+
+	static KeyStream playedStream(NoteTable noteTable, TempoMap tempoMap, long seed) {
+		Random random = new Random(seed);
+		int count = 0;
+		double[] msecs = new double[noteTable.size() * 2];
+		int[] pitches = new int[msecs.length];
+		int[] notes = new int[msecs.length];
+		for (int note = 0; note < noteTable.size(); note++) {
+			double msec = tempoMap.PulseToMsec(noteTable.getStartTime(note));
+			if (random.nextInt(10) > 0) {
+				msecs[count] = Math.max(0, msec + random.nextInt(241) - 120);
+				pitches[count] = noteTable.getNumber(note);
+				notes[count++] = note;
+			}
+			if (random.nextInt(20) == 0) {
+				msecs[count] = Math.max(0, msec + random.nextInt(241) - 120);
+				pitches[count] = Math.min(127, Math.max(0, noteTable.getNumber(note) + random.nextInt(3) - 1));
+				notes[count++] = -1;
+			}
+		}
+
+		// sort the presses by time
+		Integer[] order = new Integer[count];
+		for (int i = 0; i < count; i++) {
+			order[i] = i;
+		}
+		final double[] times = msecs;
+		Arrays.sort(order, new java.util.Comparator<Integer>() {
+			public int compare(Integer x, Integer y) {
+				return Double.compare(times[x], times[y]);
+			}
+		});
+		KeyStream stream = new KeyStream(count);
+		for (int i : order) {
+			stream.add(pitches[i], tempoMap.MsecToPulse(msecs[i]), notes[i]);
+		}
+		return stream;
+	}
+
+	/**
+	 * matches the key presses with the same rules as the ScoreFollower, but scans the whole note table for every press
+	 */
+	static class LinearMatcher {
+		NoteTable noteTable;
+		TempoMap tempoMap;
+		boolean[] done; // played or missed
+
+		LinearMatcher(NoteTable noteTable, TempoMap tempoMap) {
+			this.noteTable = noteTable;
+			this.tempoMap = tempoMap;
+			done = new boolean[noteTable.size()];
+		}
+
+		void seek() {
+			Arrays.fill(done, false);
+		}
+
+		int match(int pitch, double pulseTime) {
+			double msec = tempoMap.PulseToMsec(pulseTime);
+			for (int note = 0; note < noteTable.size(); note++) {
+				if (noteTable.getNumber(note) != pitch || done[note]) {
+					continue;
+				}
+				if (tempoMap.PulseToMsec(noteTable.getEndTime(note)) + ScoreFollower.DEFAULT_LATE_TOLERANCE < msec) {
+					done[note] = true;
+					continue;
+				}
+				if (tempoMap.PulseToMsec(noteTable.getStartTime(note)) - ScoreFollower.DEFAULT_EARLY_TOLERANCE <= msec) {
+					done[note] = true;
+					return note;
+				}
+				return -1;
+			}
+			return -1;
+		}
+	}
+
+	// replays the presses from the given one until the given end, returns the number of presses which differ from the
+	// linear matcher
+	static int compare(String name, KeyStream stream, int from, int to, ScoreFollower follower, LinearMatcher linear) {
+		int differ = 0;
+		for (int i = from; i < to; i++) {
+			int note = follower.match(stream.pitches[i], stream.pulseTimes[i]);
+			int expected = linear.match(stream.pitches[i], stream.pulseTimes[i]);
+			if (note != expected) {
+				if (differ == 0) {
+					System.out.println(name + ": press " + i + " matched note " + note + ", expected " + expected);
+				}
+				differ++;
+			}
+		}
+		return differ;
+	}
+
+	static int check(String name, NoteTable noteTable, TempoMap tempoMap, KeyStream exact, KeyStream played) {
+		int differ = 0;
+		ScoreFollower follower = new ScoreFollower(noteTable, tempoMap);
+		for (int i = 0; i < exact.size; i++) {
+			int note = follower.match(exact.pitches[i], exact.pulseTimes[i]);
+			if (note != exact.notes[i]) {
+				if (differ == 0) {
+					System.out.println(name + ": note " + exact.notes[i] + " matched note " + note);
+				}
+				differ++;
+			}
+		}
+
+		follower.seek(0);
+		differ += compare(name, played, 0, played.size, follower, new LinearMatcher(noteTable, tempoMap));
+
+		// seek to many points, press every key right there, then replay the following presses
+		LinearMatcher linear = new LinearMatcher(noteTable, tempoMap);
+		for (int from = 0; from < played.size; from += SEEK_STEP) {
+			double pulseTime = played.pulseTimes[from];
+			follower.seek(pulseTime);
+			linear.seek();
+			for (int pitch = 0; pitch < 128; pitch++) {
+				int note = follower.match(pitch, pulseTime);
+				int expected = linear.match(pitch, pulseTime);
+				if (note != expected) {
+					if (differ == 0) {
+						System.out.println(name + " seek to press " + from + ": pitch " + pitch + " matched note "
+								+ note + ", expected " + expected);
+					}
+					differ++;
+				}
+			}
+			follower.seek(pulseTime);
+			linear.seek();
+			differ += compare(name + " seek to press " + from, played, from,
+					Math.min(played.size, from + SEEK_PRESSES), follower, linear);
+		}
+		return differ;
+	}
+
+	// replays the stream once, returns the number of matched presses
+	static int replay(ScoreFollower follower, KeyStream stream) {
+		follower.seek(0);
+		int matched = 0;
+		for (int i = 0; i < stream.size; i++) {
+			if (follower.match(stream.pitches[i], stream.pulseTimes[i]) >= 0) {
+				matched++;
+			}
+		}
+		return matched;
+	}
+
+	static int replay(LinearMatcher linear, KeyStream stream) {
+		linear.seek();
+		int matched = 0;
+		for (int i = 0; i < stream.size; i++) {
+			if (linear.match(stream.pitches[i], stream.pulseTimes[i]) >= 0) {
+				matched++;
+			}
+		}
+		return matched;
+	}
+
+	public static void main(String[] args) throws Exception {
+		File[] files = TestSongs.Files(TestSongs.Directory(args));
+		ScoreFollower[] followers = new ScoreFollower[files.length];
+		LinearMatcher[] linears = new LinearMatcher[files.length];
+		KeyStream[] streams = new KeyStream[files.length];
+		int differ = 0;
+		int presses = 0;
+		for (int i = 0; i < files.length; i++) {
+			MidiFile midifile = new MidiFile(TestSongs.Read(files[i]), files[i].getName());
+			NoteTable noteTable = midifile.getNoteTable();
+			TempoMap tempoMap = midifile.getTempoMap();
+			streams[i] = playedStream(noteTable, tempoMap, i + 1);
+			differ += check(files[i].getName(), noteTable, tempoMap, exactStream(noteTable), streams[i]);
+			followers[i] = new ScoreFollower(noteTable, tempoMap);
+			linears[i] = new LinearMatcher(noteTable, tempoMap);
+			presses += streams[i].size;
+		}
+		if (differ != 0) {
+			System.out.println("FAILED: " + differ + " presses differ");
+			System.exit(1);
+		}
+
+		for (int pass = 0; pass < WARMUP_PASSES; pass++) {
+			for (int i = 0; i < files.length; i++) {
+				replay(followers[i], streams[i]);
+				replay(linears[i], streams[i]);
+			}
+		}
+		int matched = 0;
+		long start = System.nanoTime();
+		for (int pass = 0; pass < PASSES; pass++) {
+			matched = 0;
+			for (int i = 0; i < files.length; i++) {
+				matched += replay(followers[i], streams[i]);
+			}
+		}
+		long follower = System.nanoTime() - start;
+		start = System.nanoTime();
+		for (int pass = 0; pass < PASSES; pass++) {
+			for (int i = 0; i < files.length; i++) {
+				replay(linears[i], streams[i]);
+			}
+		}
+		long linear = System.nanoTime() - start;
+
+		System.out.printf("%d songs, %d presses, %d matched%n", files.length, presses, matched);
+		System.out.printf("score follower: %.0f ns per press%n", (double) follower / PASSES / presses);
+		System.out.printf("linear scan:    %.0f ns per press%n", (double) linear / PASSES / presses);
+	}
+}
@@ -0,0 +1,126 @@
+package org.hexiano;
+
+import org.climprpiano.R;
+
+import android.content.Context;
+import android.content.res.Resources;
+import android.media.AudioManager;
+import android.media.SoundPool;
+import android.provider.Settings;
+
+/**
+ * Measures the time of a note-on through Instrument.play on a JVM, and counts the AudioManager calls it makes. On a
+ * device each of those calls is a binder call into the system server, the old play made two of them per note.
+ *
+ * The PianoInstrument runs on the fakes of tests/fakes instead of the Android classes: the AudioManager counts its
+ * calls, the SoundPool remembers the volume of the last note and the settings observers are called right away.
+ * Checks that:
+ * - a note-on makes no AudioManager call and plays with the volume of the stream volume and the velocity
+ * - a settings change leaving the stream volume as it is doesn't rebuild the gains
+ * - a changed stream volume does
+ *
+ * Exits with status 1 if not.
+ */
+public class NoteOnLatencyBenchmark {
+
+	static final int WARMUP_NOTES = 2000000;
+	static final int NOTES = 10000000;
+	static final int STREAM_VOLUME = 10;
+	static final int STREAM_MAX_VOLUME = 15;
+	static final int LOWEST_ROOT_NOTE = 21;
+	static final int ROOT_NOTE_STEP = 3;
+
+	static int failed;
+
+	static void check(boolean ok, String message) {
+		if (!ok) {
+			System.out.println(message);
+			failed++;
+		}
+	}
+
+	// a sample bank with a root note every few semitones
+	static Resources sampleBank() {
+		int samples = (SampleBank.HIGHEST_NOTE - LOWEST_ROOT_NOTE) / ROOT_NOTE_STEP + 1;
+		int[] resIds = new int[samples];
+		int[] rootNotes = new int[samples];
+		int[] velocities = new int[samples];
+		for (int i = 0; i < samples; i++) {
+			resIds[i] = 1000 + i;
+			rootNotes[i] = LOWEST_ROOT_NOTE + i * ROOT_NOTE_STEP;
+			velocities[i] = 127;
+		}
+		Resources resources = new Resources();
+		resources.putIntArray(R.array.piano_samples, resIds);
+		resources.putIntArray(R.array.piano_sample_root_notes, rootNotes);
+		resources.putIntArray(R.array.piano_sample_velocities, velocities);
+		return resources;
+	}
+
+	// plays the given number of notes over the range of the samples, returns a sum of the stream ids
+	static int play(Instrument instrument, int notes) {
+		int streams = 0;
+		int range = SampleBank.HIGHEST_NOTE - LOWEST_ROOT_NOTE + 1;
+		for (int i = 0; i < notes; i++) {
+			int streamId = instrument.play(LOWEST_ROOT_NOTE + i % range, 1 + i % 127);
+			instrument.stop(streamId);
+			streams += streamId;
+		}
+		return streams;
+	}
+
+	static float gain(int streamVolume, int velocity) {
+		return 1.0f * streamVolume / STREAM_MAX_VOLUME * velocity / 128;
+	}
+
+	public static void main(String[] args) throws Exception {
+		AudioManager audioManager = new AudioManager(STREAM_VOLUME, STREAM_MAX_VOLUME);
+		Context context = new Context(audioManager, sampleBank());
+		PianoInstrument instrument = new PianoInstrument(context, Instrument.POLYPHONY_COUNT);
+		SampleBank bank = instrument.getSampleBank();
+		for (int sample = 0; sample < bank.size(); sample++) {
+			// the fake SoundPool hands out the sample ids in load order
+			instrument.onLoadComplete(sample + 1, 0);
+			instrument.addSound(bank.getSampleRootNote(sample), bank.getResId(sample));
+		}
+		for (int note = LOWEST_ROOT_NOTE; note <= SampleBank.HIGHEST_NOTE; note++) {
+			check(instrument.isPlayable(note), "note " + note + " isn't playable");
+		}
+
+		SoundPool soundPool = instrument.mSoundPool;
+		instrument.play(60, 100);
+		check(soundPool.getLastVolume() == gain(STREAM_VOLUME, 100), "played with volume " + soundPool.getLastVolume()
+				+ ", expected " + gain(STREAM_VOLUME, 100));
+
+		play(instrument, WARMUP_NOTES);
+		int noteOnCalls = audioManager.getCalls();
+		long start = System.nanoTime();
+		play(instrument, NOTES);
+		long elapsed = System.nanoTime() - start;
+		noteOnCalls = audioManager.getCalls() - noteOnCalls;
+		check(noteOnCalls == 0, "the note-ons made " + noteOnCalls + " AudioManager calls");
+
+		// another setting changed, the stream volume is asked for but the gains are kept
+		int calls = audioManager.getCalls();
+		context.getContentResolver().notifyChange(Settings.System.CONTENT_URI, null);
+		calls = audioManager.getCalls() - calls;
+		check(calls == 1, "an unrelated settings change made " + calls + " AudioManager calls, expected 1");
+		check(instrument.getVolume(127) == gain(STREAM_VOLUME, 127), "the gains changed without a volume change");
+
+		// the stream volume changed
+		audioManager.setStreamVolume(AudioManager.STREAM_MUSIC, STREAM_VOLUME / 2, 0);
+		context.getContentResolver().notifyChange(Settings.System.CONTENT_URI, null);
+		check(instrument.getVolume(127) == gain(STREAM_VOLUME / 2, 127), "the gains weren't rebuilt for the new volume");
+		instrument.play(60, 127);
+		check(soundPool.getLastVolume() == gain(STREAM_VOLUME / 2, 127), "played with volume "
+				+ soundPool.getLastVolume() + " after the volume change");
+		instrument.release();
+
+		System.out.printf("%.1f ns per note-on, %d AudioManager calls in %d note-ons (the old play made 2 per note-on)%n",
+				(double) elapsed / NOTES, noteOnCalls, NOTES);
+		if (failed != 0) {
+			System.out.println("FAILED");
+			System.exit(1);
+		}
+	}
+}
@@ -0,0 +1,107 @@
+package org.hexiano;
+
+import java.lang.management.ManagementFactory;
+
+/**
+ * Measures the throughput of the {@link SampleMixer} on a JVM. For several polyphonies the mixer renders 256-frame
+ * buffers at 44100 Hz with every voice sounding. All notes are released and started again every 50 buffers, through
+ * the event queue at frames inside the buffer.
+ *
+ * Prints the real time factor (the audio time rendered per CPU time) and the voices per ms of CPU (the voices times
+ * the audio time, per CPU time). Also checks that every voice sounds and that render doesn't allocate once warmed up.
+ * Exits with status 1 if not.
+ */
+public class SampleMixerBenchmark {
+
+	static final int SAMPLE_RATE = 44100;
+	static final int FRAMES = 256;
+	static final int ROOT_NOTE = 60;
+	static final int SAMPLE_SECONDS = 4;
+	static final int RETRIGGER = 50; // the buffers between the restarts of all notes
+	static final int WARMUP_BUFFERS = 20000;
+	static final int BUFFERS = 50000;
+	static final int ALLOCATION_BUFFERS = 5000;
+	static final int[] POLYPHONIES = { 8, 16, 32, 64 };
+
+	// a decaying tone of the root note
+	static short[] sample() {
+		short[] sample = new short[SAMPLE_SECONDS * SAMPLE_RATE];
+		double frequency = 440 * Math.pow(2, (ROOT_NOTE - 69) / 12.0);
+		for (int i = 0; i < sample.length; i++) {
+			double t = (double) i / SAMPLE_RATE;
+			sample[i] = (short) (8000 * Math.exp(-t) * Math.sin(2 * Math.PI * frequency * t));
+		}
+		return sample;
+	}
+
+	static long bufferTime(long buffer) {
+		return buffer * FRAMES * 1000000000L / SAMPLE_RATE;
+	}
+
+	// renders the buffers from the given one on, returns the next buffer
+	static long render(SampleMixer mixer, int polyphony, short[] buffer, long from, int count) {
+		for (long b = from; b < from + count; b++) {
+			if (b % RETRIGGER == 0) {
+				long time = bufferTime(b);
+				mixer.allNotesOff(time);
+				for (int voice = 0; voice < polyphony; voice++) {
+					// spread the notes over the buffer, one pitch each around the root note
+					long noteTime = time + bufferTime(1) * voice / polyphony;
+					mixer.noteOn(noteTime, ROOT_NOTE - polyphony / 2 + voice, 100);
+				}
+			}
+			mixer.render(buffer, 0, FRAMES, bufferTime(b));
+		}
+		return from + count;
+	}
+
+	public static void main(String[] args) {
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long thread = Thread.currentThread().getId();
+		short[] sample = sample();
+		short[] buffer = new short[FRAMES];
+		int failed = 0;
+		// the first calls of the counters may allocate
+		for (int i = 0; i < 3; i++) {
+			threads.getThreadAllocatedBytes(thread);
+			threads.getCurrentThreadCpuTime();
+		}
+
+		for (int polyphony : POLYPHONIES) {
+			SampleMixer mixer = new SampleMixer(SAMPLE_RATE, polyphony, FRAMES);
+			mixer.setSample(ROOT_NOTE, sample, SAMPLE_RATE);
+			for (int note = 0; note < 128; note++) {
+				mixer.setRootNote(note, ROOT_NOTE, (float) Math.pow(2, (note - ROOT_NOTE) / 12.0));
+			}
+			long next = render(mixer, polyphony, buffer, 0, WARMUP_BUFFERS);
+
+			long cpu = threads.getCurrentThreadCpuTime();
+			next = render(mixer, polyphony, buffer, next, BUFFERS);
+			cpu = threads.getCurrentThreadCpuTime() - cpu;
+
+			// the allocations are counted after the timed buffers, while the compiled code may still change during
+			// those, and the runtime may allocate when it does
+			long allocated = threads.getThreadAllocatedBytes(thread);
+			render(mixer, polyphony, buffer, next, ALLOCATION_BUFFERS);
+			allocated = threads.getThreadAllocatedBytes(thread) - allocated;
+			int voicesInUse = mixer.getVoicesInUse();
+
+			double audioMsec = (double) BUFFERS * FRAMES * 1000 / SAMPLE_RATE;
+			double cpuMsec = cpu / 1e6;
+			System.out.printf("%2d voices: real time factor %.0f, %.0f voices per ms of CPU, %d bytes allocated%n",
+					polyphony, audioMsec / cpuMsec, polyphony * audioMsec / cpuMsec, allocated);
+			if (allocated != 0) {
+				System.out.println(polyphony + " voices: render allocated " + allocated + " bytes");
+				failed++;
+			}
+			if (voicesInUse < polyphony) {
+				System.out.println(polyphony + " voices: only " + voicesInUse + " voices in use");
+				failed++;
+			}
+		}
+		if (failed != 0) {
+			System.out.println("FAILED");
+			System.exit(1);
+		}
+	}
+}